@@ -16,12 +16,15 @@ import java.util.function.Consumer;
  */
 public interface Channel<T> {
     /**
-     * Publish the message to this channel.
+     * Publish the message to this channel. If the message is reference-counted (a ByteBuf), ownership is transferred
+     * to this channel: it will be released once it has been sent and must not be used by the caller afterwards.
      */
     void publish(T message);
 
     /**
-     * Subscribe to this channel.
+     * Subscribe to this channel. Reference-counted messages passed to the listener are only valid until the listener
+     * returns and are released afterwards; listeners that keep them for later use must retain them. Messages may be
+     * read-only views shared with other listeners.
      */
     void subscribe(Consumer<T> listener);
 
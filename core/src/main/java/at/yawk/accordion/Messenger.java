@@ -7,6 +7,8 @@
 package at.yawk.accordion;
 
 import at.yawk.accordion.codec.Codec;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
 
 /**
  * Messenger that provides unique channels by name.
@@ -15,8 +17,21 @@ import at.yawk.accordion.codec.Codec;
  */
 @FunctionalInterface
 public interface Messenger<T> {
+    /**
+     * Allocator used by messengers that do not provide their own. Creates unpooled heap buffers like
+     * Unpooled.buffer().
+     */
+    ByteBufAllocator HEAP_ALLOCATOR = new UnpooledByteBufAllocator(false);
+
     Channel<T> getChannel(String name);
 
+    /**
+     * The allocator that should be used for buffers that are published through this messenger.
+     */
+    default ByteBufAllocator alloc() {
+        return HEAP_ALLOCATOR;
+    }
+
     /**
      * Transform this channel using the given codec.
      */
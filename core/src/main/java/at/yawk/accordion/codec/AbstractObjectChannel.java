@@ -9,7 +9,6 @@ package at.yawk.accordion.codec;
 import at.yawk.accordion.Channel;
 import at.yawk.accordion.Messenger;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
@@ -42,8 +41,13 @@ public abstract class AbstractObjectChannel<T> implements ObjectChannel<T> {
         Class<? extends T> clazz = (Class) message.getClass();
         String channel = channelNameFactory.apply(clazz);
         // write packet to empty buffer
-        ByteBuf payload = Unpooled.buffer();
-        write(message, payload);
+        ByteBuf payload = messenger.alloc().buffer();
+        try {
+            write(message, payload);
+        } catch (Throwable t) {
+            payload.release();
+            throw t;
+        }
         // send buffer to channel of this packet type
         messenger.getChannel(channel).publish(payload);
 
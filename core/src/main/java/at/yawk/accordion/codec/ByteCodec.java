@@ -7,6 +7,7 @@
 package at.yawk.accordion.codec;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.Unpooled;
 
 /**
@@ -22,6 +23,21 @@ public interface ByteCodec<U> extends Codec<ByteBuf, U> {
         return buf;
     }
 
+    /**
+     * Encode U to a new ByteBuf created by the given allocator. The caller is responsible for releasing the returned
+     * buffer.
+     */
+    default ByteBuf encode(ByteBufAllocator alloc, U message) {
+        ByteBuf buf = alloc.buffer();
+        try {
+            encode(buf, message);
+        } catch (Throwable t) {
+            buf.release();
+            throw t;
+        }
+        return buf;
+    }
+
     /**
      * Encode U to an existing ByteBuf.
      */
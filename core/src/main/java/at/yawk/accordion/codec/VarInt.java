@@ -0,0 +1,82 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.codec;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Helper for unsigned variable-length integers: 7 bits per byte, least significant group first, high bit set on all
+ * bytes but the last.
+ *
+ * @author yawkat
+ */
+public class VarInt {
+    /**
+     * Maximum encoded length of an int.
+     */
+    public static final int MAX_LENGTH = 5;
+
+    private VarInt() {}
+
+    /**
+     * Write the given int.
+     */
+    public static void write(ByteBuf to, int value) {
+        while ((value & ~0x7F) != 0) {
+            to.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        to.writeByte(value);
+    }
+
+    /**
+     * Read an int written by #write.
+     *
+     * @throws java.lang.IllegalArgumentException if the encoded value is longer than #MAX_LENGTH bytes.
+     */
+    public static int read(ByteBuf from) {
+        int value = 0;
+        for (int i = 0; i < MAX_LENGTH; i++) {
+            byte b = from.readByte();
+            value |= (b & 0x7F) << (i * 7);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("VarInt too long");
+    }
+
+    /**
+     * Returns whether a complete int can be read from the given buffer without changing its reader index.
+     *
+     * @throws java.lang.IllegalArgumentException if the encoded value is longer than #MAX_LENGTH bytes.
+     */
+    public static boolean isReadable(ByteBuf from) {
+        int available = Math.min(from.readableBytes(), MAX_LENGTH);
+        for (int i = 0; i < available; i++) {
+            if ((from.getByte(from.readerIndex() + i) & 0x80) == 0) {
+                return true;
+            }
+        }
+        if (available == MAX_LENGTH) {
+            throw new IllegalArgumentException("VarInt too long");
+        }
+        return false;
+    }
+
+    /**
+     * The number of bytes #write needs for the given value.
+     */
+    public static int length(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+}
@@ -66,6 +66,16 @@ public class CodecManager implements CodecSupplier {
                 .findFirst();
     }
 
+    /**
+     * Get a codec for the given type as used by UnsafeObjectChannel.
+     *
+     * @throws java.lang.UnsupportedOperationException if there is no codec for the given type.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> ByteCodec<T> getByteCodec(Class<T> type) {
+        return (ByteCodec<T>) getCodecOrThrow(FieldWrapper.clazz(type)).toByteCodec();
+    }
+
     <T> CodecManager compactCodec(Class<T> of) {
         return addObjectCodec(of, new NullableCodec<>(CommonObjectCodec.create(this, of)));
     }
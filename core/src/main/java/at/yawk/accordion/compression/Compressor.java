@@ -12,6 +12,9 @@ import io.netty.buffer.ByteBuf;
 /**
  * Byte-Byte codec that compresses it's encoded form. Input ByteBufs should not be reused as they may either be drained
  * while (de)compression takes place, returned again (in the case of VoidCompressor) or even not touched at all.
+ * <p/>
+ * Compressors never release their input. The caller owns both the input and the output buffer and has to release the
+ * output as well unless it is the same instance as the input.
  *
  * @author yawkat
  */
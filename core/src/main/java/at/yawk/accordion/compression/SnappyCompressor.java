@@ -10,7 +10,6 @@ import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import java.io.IOException;
 import java.io.UncheckedIOException;
-import java.util.Arrays;
 import lombok.Getter;
 import org.xerial.snappy.Snappy;
 
@@ -43,8 +42,9 @@ public class SnappyCompressor implements Compressor {
     }
 
     private static byte[] toArray(ByteBuf raw) {
-        return Arrays.copyOfRange(raw.array(),
-                                  raw.arrayOffset() + raw.readerIndex(),
-                                  raw.arrayOffset() + raw.readerIndex() + raw.readableBytes());
+        // getBytes instead of array() so this also works for direct buffers
+        byte[] array = new byte[raw.readableBytes()];
+        raw.getBytes(raw.readerIndex(), array);
+        return array;
     }
 }
@@ -10,8 +10,6 @@ import at.yawk.accordion.Log;
 import at.yawk.accordion.codec.ByteCodec;
 import at.yawk.accordion.netty.Connection;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
-import java.nio.charset.StandardCharsets;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -34,10 +32,6 @@ abstract class AbstractCollectionSynchronizer<T> implements CollectionSynchroniz
      * The channel name reserved for this synchronizer.
      */
     @Getter private final String channel;
-    /**
-     * The encoded channel name of this synchronizer.
-     */
-    private final byte[] channelNameBytes;
     /**
      * The ByteCodec used to serialize and deserialize entries of this set.
      */
@@ -48,7 +42,6 @@ abstract class AbstractCollectionSynchronizer<T> implements CollectionSynchroniz
                                              ByteCodec<T> serializer) {
         this.connectionManager = connectionManager;
         this.channel = channel;
-        this.channelNameBytes = channel.getBytes(StandardCharsets.UTF_8);
         this.serializer = serializer;
 
         // reserve our channel in the connection manager
@@ -86,7 +79,7 @@ abstract class AbstractCollectionSynchronizer<T> implements CollectionSynchroniz
             targets = targetList.stream();
         }
         // send the update packet
-        connectionManager.sendPacket(channelNameBytes, targets, message);
+        connectionManager.sendPacket(channel, targets, message);
     }
 
     /**
@@ -122,11 +115,16 @@ abstract class AbstractCollectionSynchronizer<T> implements CollectionSynchroniz
      * Encode a set of entries into a bytebuf.
      */
     private ByteBuf encode(Set<T> added) {
-        ByteBuf message = Unpooled.buffer();
-        // ushort length
-        message.writeShort(added.size());
-        // individual entries written sequentially
-        added.forEach(entry -> serializer.encode(message, entry));
+        ByteBuf message = connectionManager.alloc().buffer();
+        try {
+            // ushort length
+            message.writeShort(added.size());
+            // individual entries written sequentially
+            added.forEach(entry -> serializer.encode(message, entry));
+        } catch (Throwable t) {
+            message.release();
+            throw t;
+        }
         return message;
     }
 }
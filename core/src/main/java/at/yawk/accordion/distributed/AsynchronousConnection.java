@@ -7,24 +7,44 @@
 package at.yawk.accordion.distributed;
 
 import at.yawk.accordion.netty.Connection;
+import at.yawk.accordion.netty.ConnectionStatistics;
+import at.yawk.accordion.netty.Priority;
 import io.netty.buffer.ByteBuf;
 import java.util.Map;
 import java.util.concurrent.Executor;
 import java.util.function.Consumer;
-import lombok.RequiredArgsConstructor;
 
 /**
+ * Connection wrapper that moves sends and handler invocations off the caller and network threads. Work is split into
+ * serial lanes over a shared pool: one outbound lane per Priority (sending, disconnecting on the NORMAL lane) and
+ * inbound (handlers). Each lane keeps FIFO order, so messages from one peer are handled in the order they arrived and
+ * a slow send does not delay handling received messages. Sends to a backed up peer suspend their lane instead of
+ * blocking a pool thread, so BULK messages waiting for a slow peer don't hold back NORMAL ones. Priority.CONTROL
+ * messages never block (see NettyConnection) and skip the lanes entirely so they don't wait for a pool thread.
+ *
  * @author yawkat
  */
-@RequiredArgsConstructor
 class AsynchronousConnection implements Connection {
     private final Connection connection;
-    private final Executor executor;
+    /**
+     * Outbound lanes by Priority ordinal. The CONTROL lane is unused.
+     */
+    private final SerialExecutor[] outbound;
+    private final SerialExecutor inbound;
 
     private Consumer<Throwable> exceptionHandler = thr -> {};
 
-    private void execute(Runnable task) {
-        executor.execute(() -> {
+    AsynchronousConnection(Connection connection, Executor executor) {
+        this.connection = connection;
+        this.outbound = new SerialExecutor[Priority.values().length];
+        for (int i = 0; i < outbound.length; i++) {
+            outbound[i] = new SerialExecutor(executor);
+        }
+        this.inbound = new SerialExecutor(executor);
+    }
+
+    private void execute(SerialExecutor lane, Runnable task) {
+        lane.execute(() -> {
             try {
 
                 task.run();
@@ -35,33 +55,85 @@ class AsynchronousConnection implements Connection {
 
     @Override
     public void send(ByteBuf data) {
-        execute(() -> connection.send(data));
+        send(data, Priority.NORMAL);
+    }
+
+    @Override
+    public void send(ByteBuf data, Priority priority) {
+        if (priority == Priority.CONTROL) {
+            try {
+
+                connection.send(data, priority);
+
+            } catch (Throwable t) { exceptionHandler.accept(t); }
+            return;
+        }
+        SerialExecutor lane = outbound[priority.ordinal()];
+        execute(lane, () -> trySend(lane, data, priority));
+    }
+
+    /**
+     * Send a message without blocking the pool thread: while the connection is backed up (OverflowPolicy.BLOCK), the
+     * lane is suspended and the send is retried once the connection accepts messages again. Must be called from a task
+     * of the given lane.
+     */
+    private void trySend(SerialExecutor lane, ByteBuf data, Priority priority) {
+        lane.suspend(() -> {
+            try {
+
+                trySend(lane, data, priority);
+
+            } catch (Throwable t) { exceptionHandler.accept(t); }
+        });
+        boolean waiting = false;
+        try {
+            waiting = !connection.trySend(data, priority, lane::resume);
+        } finally {
+            if (!waiting) {
+                lane.cancelSuspend();
+            }
+        }
     }
 
     @Override
     public void disconnect() {
-        execute(connection::disconnect);
+        execute(outbound[Priority.NORMAL.ordinal()], connection::disconnect);
     }
 
     @Override
     public void setMessageHandler(Consumer<ByteBuf> listener) {
-        execute(() -> {
+        execute(inbound, () -> {
             Consumer<ByteBuf> wrappedHandler =
                     message -> execute(
-                            () -> listener.accept(message)
+                            inbound, () -> listener.accept(message)
                     );
 
             connection.setMessageHandler(wrappedHandler);
         });
     }
 
+    /**
+     * Set a message handler that is called directly on the thread the underlying connection received the message on
+     * (usually the network thread). Use #executeInbound to continue on the inbound lane.
+     */
+    void setInlineMessageHandler(Consumer<ByteBuf> listener) {
+        execute(inbound, () -> connection.setMessageHandler(listener));
+    }
+
+    /**
+     * Run the given task on the inbound lane, in order with the handlers of this connection.
+     */
+    void executeInbound(Runnable task) {
+        execute(inbound, task);
+    }
+
     @Override
     public void setExceptionHandler(Consumer<Throwable> listener) {
         this.exceptionHandler = listener;
-        execute(() -> {
+        execute(inbound, () -> {
             Consumer<Throwable> wrappedHandler =
                     throwable -> execute(
-                            () -> listener.accept(throwable)
+                            inbound, () -> listener.accept(throwable)
                     );
 
             connection.setExceptionHandler(wrappedHandler);
@@ -70,7 +142,34 @@ class AsynchronousConnection implements Connection {
 
     @Override
     public void setDisconnectHandler(Runnable listener) {
-        execute(() -> connection.setDisconnectHandler(() -> execute(listener)));
+        execute(inbound, () -> connection.setDisconnectHandler(() -> execute(inbound, listener)));
+    }
+
+    /**
+     * Number of tasks waiting in all lanes.
+     */
+    int getQueueDepth() {
+        int depth = inbound.getQueueDepth();
+        for (SerialExecutor lane : outbound) {
+            depth += lane.getQueueDepth();
+        }
+        return depth;
+    }
+
+    /**
+     * Largest number of tasks that were waiting in one lane at the same time.
+     */
+    int getMaxQueueDepth() {
+        int max = inbound.getMaxQueueDepth();
+        for (SerialExecutor lane : outbound) {
+            max = Math.max(max, lane.getMaxQueueDepth());
+        }
+        return max;
+    }
+
+    @Override
+    public ConnectionStatistics getStatistics() {
+        return connection.getStatistics();
     }
 
     @Override
@@ -0,0 +1,198 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.distributed;
+
+import at.yawk.accordion.codec.VarInt;
+import io.netty.buffer.ByteBuf;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Per-connection table of numeric channel IDs so packets don't have to carry the full channel name.
+ * <p/>
+ * A channel reference is a varint <code>(id &lt;&lt; 1) | hasName</code>, followed by the channel name (see
+ * InternalProtocol#writeByteString) if hasName is set. The first packets of a channel announce the ID together with
+ * the name; once the receiver acknowledged the ID (see InternalProtocol#ALIAS), only the ID is sent. Internal channels
+ * have fixed IDs known to all nodes and are never announced. ID 0 with a name means "no alias", used when the alias
+ * table of a connection is full.
+ *
+ * @author yawkat
+ */
+class ChannelAliases {
+    /**
+     * Channels with fixed IDs, by ID.
+     */
+    private static final String[] WELL_KNOWN_CHANNELS = {
+            InternalProtocol.SUBSCRIBE,
+            InternalProtocol.SYNC_NODES,
+            InternalProtocol.WELCOME,
+            InternalProtocol.HEARTBEAT,
+            InternalProtocol.ALIAS,
+            InternalProtocol.IDENTIFY,
+            InternalProtocol.TOPOLOGY,
+            InternalProtocol.UNICAST
+    };
+    private static final Map<String, Integer> WELL_KNOWN_IDS;
+
+    static {
+        Map<String, Integer> ids = new HashMap<>();
+        for (int i = 0; i < WELL_KNOWN_CHANNELS.length; i++) {
+            ids.put(WELL_KNOWN_CHANNELS[i], i);
+        }
+        WELL_KNOWN_IDS = Collections.unmodifiableMap(ids);
+    }
+
+    /**
+     * First ID assigned to user channels. IDs below are reserved for well-known channels.
+     */
+    private static final int FIRST_DYNAMIC_ID = 32;
+    /**
+     * Maximum number of dynamic IDs per connection and direction.
+     */
+    private static final int MAX_ALIASES = 0x10000;
+    /**
+     * ID used for references that carry a name but no alias.
+     */
+    private static final int NO_ALIAS = 0;
+
+    /*
+     * Outbound: the IDs we assigned to channels we send on this connection.
+     */
+
+    private final Map<String, Alias> outboundByName = new ConcurrentHashMap<>();
+    private final Map<Integer, Alias> outboundById = new ConcurrentHashMap<>();
+    private final AtomicInteger nextOutboundId = new AtomicInteger(FIRST_DYNAMIC_ID);
+
+    /*
+     * Inbound: the IDs the remote assigned to channels it sends to us.
+     */
+
+    /**
+     * Channel names by inbound ID. Copied on write, the remote assigns IDs sequentially so this stays dense.
+     */
+    private volatile String[] inboundNames = new String[0];
+
+    /**
+     * Write a reference to the given channel.
+     */
+    void write(ByteBuf to, String channel) {
+        Integer wellKnown = WELL_KNOWN_IDS.get(channel);
+        if (wellKnown != null) {
+            VarInt.write(to, wellKnown << 1);
+            return;
+        }
+
+        Alias alias = outboundByName.get(channel);
+        if (alias == null) {
+            alias = createAlias(channel);
+        }
+        if (alias == null) {
+            // table full
+            VarInt.write(to, (NO_ALIAS << 1) | 1);
+            InternalProtocol.writeByteString(to, channel);
+        } else if (alias.acknowledged) {
+            VarInt.write(to, alias.id << 1);
+        } else {
+            // not acknowledged yet, announce (again)
+            VarInt.write(to, (alias.id << 1) | 1);
+            InternalProtocol.writeByteArray(to, alias.nameBytes);
+        }
+    }
+
+    /**
+     * Assign a new outbound ID to the given channel. Returns null if this connection has no free IDs anymore.
+     */
+    private Alias createAlias(String channel) {
+        return outboundByName.computeIfAbsent(channel, name -> {
+            int id = nextOutboundId.get();
+            if (id - FIRST_DYNAMIC_ID >= MAX_ALIASES) {
+                return null;
+            }
+            nextOutboundId.incrementAndGet();
+            Alias alias = new Alias(id, name.getBytes(StandardCharsets.UTF_8));
+            outboundById.put(id, alias);
+            return alias;
+        });
+    }
+
+    /**
+     * Mark the given outbound ID as known by the remote.
+     */
+    void acknowledge(int id) {
+        Alias alias = outboundById.get(id);
+        if (alias != null) {
+            alias.acknowledged = true;
+        }
+    }
+
+    /**
+     * Read a channel reference written by #write on the other side of this connection. If the reference announced an
+     * ID we did not know before, onAnnounced is called with it so it can be acknowledged.
+     *
+     * @return the channel name or null if the reference uses an unknown ID.
+     */
+    String read(ByteBuf from, IntConsumer onAnnounced) {
+        int reference = VarInt.read(from);
+        int id = reference >>> 1;
+        if ((reference & 1) == 0) {
+            // id only
+            if (id < WELL_KNOWN_CHANNELS.length) {
+                return WELL_KNOWN_CHANNELS[id];
+            }
+            String[] names = inboundNames;
+            return id < names.length ? names[id] : null;
+        }
+
+        String name = InternalProtocol.readByteString(from);
+        if (id != NO_ALIAS) {
+            if (id < FIRST_DYNAMIC_ID || id - FIRST_DYNAMIC_ID >= MAX_ALIASES) {
+                throw new IllegalArgumentException("Invalid channel ID " + id);
+            }
+            if (recordInbound(id, name)) {
+                onAnnounced.accept(id);
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Remember the given inbound ID.
+     *
+     * @return true if the ID was not known before.
+     */
+    private synchronized boolean recordInbound(int id, String name) {
+        String[] names = inboundNames;
+        if (id < names.length && names[id] != null) {
+            return false;
+        }
+        if (id >= names.length) {
+            names = Arrays.copyOf(names, Math.max(id + 1, names.length * 2));
+        } else {
+            names = names.clone();
+        }
+        names[id] = name;
+        inboundNames = names;
+        return true;
+    }
+
+    private static class Alias {
+        private final int id;
+        private final byte[] nameBytes;
+        private volatile boolean acknowledged = false;
+
+        Alias(int id, byte[] nameBytes) {
+            this.id = id;
+            this.nameBytes = nameBytes;
+        }
+    }
+}
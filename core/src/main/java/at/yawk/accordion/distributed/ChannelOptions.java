@@ -0,0 +1,72 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.distributed;
+
+import at.yawk.accordion.netty.Priority;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Value;
+
+/**
+ * Options for publishing on and subscribing to a channel, see ConnectionManager#getChannel(String, ChannelOptions).
+ * Instances are immutable, the setter-like methods return modified copies.
+ *
+ * @author yawkat
+ */
+@Value
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class ChannelOptions {
+    /**
+     * Largest supported hop limit.
+     */
+    public static final int MAX_HOPS = 0x100;
+
+    /**
+     * Default options: no hop limit apart from #MAX_HOPS, listeners are called on handler threads, Priority.NORMAL.
+     */
+    public static final ChannelOptions DEFAULT = new ChannelOptions(MAX_HOPS, false, Priority.NORMAL);
+
+    /**
+     * Maximum number of connections a packet may travel through, including the first one from the publisher. 1 only
+     * reaches direct neighbors.
+     */
+    int maxHops;
+    /**
+     * Whether received packets of this channel are handled directly on the network thread instead of being passed to
+     * a handler thread first. This saves a thread handoff per packet but the listeners must never block. Applies to
+     * all listeners of the channel once one of them subscribed with it.
+     */
+    boolean inline;
+    /**
+     * Priority class of published packets on every connection they travel through.
+     */
+    Priority priority;
+
+    /**
+     * Copy of these options with the given hop limit.
+     */
+    public ChannelOptions maxHops(int maxHops) {
+        if (maxHops < 1 || maxHops > MAX_HOPS) {
+            throw new IllegalArgumentException("Hop limit must be between 1 and " + MAX_HOPS);
+        }
+        return new ChannelOptions(maxHops, inline, priority);
+    }
+
+    /**
+     * Copy of these options with the given inline delivery flag.
+     */
+    public ChannelOptions inline(boolean inline) {
+        return new ChannelOptions(maxHops, inline, priority);
+    }
+
+    /**
+     * Copy of these options with the given priority.
+     */
+    public ChannelOptions priority(Priority priority) {
+        return new ChannelOptions(maxHops, inline, priority);
+    }
+}
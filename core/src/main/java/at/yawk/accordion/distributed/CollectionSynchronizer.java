@@ -42,7 +42,8 @@ interface CollectionSynchronizer<T> {
     Set<T> decodeAndAdd(ByteBuf message);
 
     /**
-     * Encode all entries of this synchronizer into a ByteBuf that can be read by #decodeAndAdd.
+     * Encode all entries of this synchronizer into a ByteBuf that can be read by #decodeAndAdd. The caller has to
+     * release the returned buffer.
      */
     ByteBuf encode();
 
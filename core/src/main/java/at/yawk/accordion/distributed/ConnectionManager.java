@@ -10,10 +10,14 @@ import at.yawk.accordion.Channel;
 import at.yawk.accordion.Log;
 import at.yawk.accordion.Messenger;
 import at.yawk.accordion.codec.ByteCodec;
+import at.yawk.accordion.codec.VarInt;
 import at.yawk.accordion.compression.Compressor;
 import at.yawk.accordion.compression.VoidCompressor;
 import at.yawk.accordion.netty.Connection;
+import at.yawk.accordion.netty.Priority;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
 import lombok.AccessLevel;
 import lombok.Getter;
 import org.slf4j.Logger;
@@ -21,7 +25,6 @@ import org.slf4j.Logger;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
@@ -39,11 +42,28 @@ public class ConnectionManager implements Messenger<ByteBuf> {
      */
     private static final int MAX_CHANNEL_NAME_LENGTH = 0xFF;
     /**
-     * RNG for generating random packet IDs.
+     * Initial capacity of packet header buffers: packet ID, hop limit, priority, channel ID and channel name.
      */
-    private static final Random PACKET_ID_GENERATOR = new Random();
-
-    private static final AtomicInteger threadId = new AtomicInteger();
+    private static final int HEADER_CAPACITY = 8 + 1 + 1 + VarInt.MAX_LENGTH + 1 + MAX_CHANNEL_NAME_LENGTH;
+    /**
+     * Options of internal packets: they are never forwarded and go ahead of application packets.
+     */
+    private static final ChannelOptions INTERNAL_OPTIONS = ChannelOptions.DEFAULT.maxHops(1).priority(Priority.CONTROL);
+    private static final Priority[] PRIORITIES = Priority.values();
+    /**
+     * Connection property that contains the ChannelAliases of a connection.
+     */
+    private static final String PROPERTY_ALIASES = "acc.aliases";
+    /**
+     * Raw packets longer than this are fragmented by NettyConnection (see Framer#MAXIMUM_FRAME_LENGTH), so any number
+     * of smaller packets may overtake them on the way.
+     */
+    private static final int FRAGMENTED_PACKET_LENGTH = 16 * 1024;
+    private static final Connection[] NO_CONNECTIONS = new Connection[0];
+    /**
+     * Default number of threads that send packets and call handlers.
+     */
+    public static final int DEFAULT_HANDLER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
 
     /**
      * Thread group used for all executors used by this ConnectionManager.
@@ -71,14 +91,27 @@ public class ConnectionManager implements Messenger<ByteBuf> {
      */
     private final Map<String, Collection<Consumer<ByteBuf>>> listeners = new ConcurrentHashMap<>();
     /**
-     * PacketDistinctionHandler to avoid duplicate packet handling.
+     * Generates IDs for our packets and avoids duplicate packet handling.
      */
-    private final PacketDistinctionHandler packetDistinctionHandler;
+    private final PacketIdScheme packetIdScheme;
+    /**
+     * Decides where packets are forwarded.
+     */
+    private final RoutingMode routingMode;
+    /**
+     * Knows the node graph: decides which neighbors get a packet in RoutingMode.SPANNING_TREE and routes unicast
+     * packets.
+     */
+    private final TopologyManager topologyManager;
 
     /**
      * All channels in the network. Also the channels we need to receive to forward them to other nodes.
      */
     private final GraphCollectionSynchronizer<String> subscribedChannels;
+    /**
+     * The connections subscribed to each channel, kept in sync with #subscribedChannels.
+     */
+    private final SubscriptionIndex subscriptionIndex = new SubscriptionIndex();
     /**
      * Manages heartbeats and disconnects on timeout.
      */
@@ -89,6 +122,11 @@ public class ConnectionManager implements Messenger<ByteBuf> {
      * normal communication. Packets in that channel will also not be forwarded to other servers.
      */
     private final Map<String, BiConsumer<ByteBuf, Connection>> internalHandlers = new HashMap<>();
+    /**
+     * Channels whose packets are handled on the network thread they arrive on, see ChannelOptions#inline. By default
+     * the internal channels whose handlers never block or call user code.
+     */
+    private final Set<String> inlineChannels = ConcurrentHashMap.newKeySet();
 
     /**
      * Counter that gets incremented each time a new unique packet is received.
@@ -100,9 +138,9 @@ public class ConnectionManager implements Messenger<ByteBuf> {
     private final AtomicLong receivedPacketCountIncludingDuplicates = new AtomicLong();
 
     /**
-     * Executor used for asynchronous connection writing.
+     * Executor shared by the serial lanes of all connections, see AsynchronousConnection and ExecutionMode.
      */
-    private final Executor executor;
+    private final ExecutorService executor;
 
     /**
      * Compressor used to compress data between nodes. Note that there is no check to ensure two nodes use the same
@@ -110,19 +148,37 @@ public class ConnectionManager implements Messenger<ByteBuf> {
      */
     private final Compressor compressor;
 
-    private ConnectionManager(ThreadGroup threadGroup, Logger logger, Compressor compressor) {
+    /**
+     * Allocator used for all buffers created while encoding, decoding and forwarding packets.
+     */
+    private final ByteBufAllocator allocator;
+
+    ConnectionManager(ThreadGroup threadGroup,
+                      Logger logger,
+                      Compressor compressor,
+                      ByteBufAllocator allocator,
+                      PacketIdMode packetIdMode,
+                      RoutingMode routingMode,
+                      ExecutionMode executionMode,
+                      int handlerThreads) {
+        if (routingMode == RoutingMode.SPANNING_TREE && packetIdMode != PacketIdMode.SEQUENTIAL) {
+            throw new IllegalArgumentException("Spanning tree routing requires sequential packet IDs");
+        }
         this.threadGroup = threadGroup;
         this.logger = logger;
         this.compressor = compressor;
+        this.allocator = allocator;
+        this.routingMode = routingMode;
 
-        packetDistinctionHandler = PacketDistinctionHandler.createAndStart(threadGroup);
-        executor = Executors
-                .newCachedThreadPool(r -> new Thread(threadGroup,
-                        r,
-                        "Accordion handler thread #" + threadId.incrementAndGet()));
+        PacketIdGenerator packetIdGenerator = new PacketIdGenerator();
+        packetIdScheme = packetIdMode.createScheme(threadGroup, logger, packetIdGenerator);
+        executor = executionMode.orFallback().createExecutor(threadGroup, handlerThreads);
 
         // remove on disconnect.
-        this.disconnectListener = connections::remove;
+        this.disconnectListener = connection -> {
+            connections.remove(connection);
+            subscriptionIndex.remove(connection);
+        };
 
         subscribedChannels = new GraphCollectionSynchronizer<String>(this, InternalProtocol.SUBSCRIBE,
                 new ByteCodec<String>() {
@@ -143,12 +199,31 @@ public class ConnectionManager implements Messenger<ByteBuf> {
             @Override
             protected Set<String> handleUpdate(Set<String> newEntries, Connection origin) {
                 Log.debug(getLogger(), () -> origin + " now subscribed to " + newEntries);
+                subscriptionIndex.add(origin, newEntries);
+                if (!connections.contains(origin)) {
+                    // disconnected concurrently, don't keep it in the index
+                    subscriptionIndex.remove(origin);
+                }
                 return super.handleUpdate(newEntries, origin);
             }
         };
 
+        setInternalHandler(InternalProtocol.ALIAS, (message, connection) -> {
+            // the remote now knows our channel ID
+            getAliases(connection).acknowledge(VarInt.read(message));
+        });
+
+        inlineChannels.addAll(Arrays.asList(InternalProtocol.SUBSCRIBE,
+                                            InternalProtocol.HEARTBEAT,
+                                            InternalProtocol.ALIAS,
+                                            InternalProtocol.IDENTIFY,
+                                            InternalProtocol.TOPOLOGY));
+
         heartbeatManager = new HeartbeatManager(this);
         heartbeatManager.start();
+
+        topologyManager = new TopologyManager(this, packetIdGenerator.getOrigin());
+        addDisconnectListener(topologyManager::onDisconnected);
     }
 
     /**
@@ -158,12 +233,16 @@ public class ConnectionManager implements Messenger<ByteBuf> {
         internalHandlers.put(channel, handler);
     }
 
+    public static ConnectionManagerBuilder builder() {
+        return new ConnectionManagerBuilder();
+    }
+
     public static ConnectionManager create(ThreadGroup threadGroup, Logger logger) {
         return create(threadGroup, logger, VoidCompressor.getInstance());
     }
 
     public static ConnectionManager create(ThreadGroup threadGroup, Logger logger, Compressor compressor) {
-        return new ConnectionManager(threadGroup, logger, compressor);
+        return builder().threadGroup(threadGroup).logger(logger).compressor(compressor).build();
     }
 
     public static ConnectionManager create(Logger logger) {
@@ -171,6 +250,13 @@ public class ConnectionManager implements Messenger<ByteBuf> {
     }
 
     public static ConnectionManager create(Logger logger, Compressor compressor) {
+        return create(getDefaultThreadGroup(), logger, compressor);
+    }
+
+    /**
+     * Get the thread group that should be used if none is given explicitly.
+     */
+    static ThreadGroup getDefaultThreadGroup() {
         ThreadGroup group = null;
         SecurityManager sec = System.getSecurityManager();
         // check if security wants us to use a specific ThreadGroup
@@ -181,7 +267,7 @@ public class ConnectionManager implements Messenger<ByteBuf> {
             // default to parent group
             group = Thread.currentThread().getThreadGroup();
         }
-        return create(group, logger, compressor);
+        return group;
     }
 
     public static ConnectionManager create() {
@@ -197,7 +283,16 @@ public class ConnectionManager implements Messenger<ByteBuf> {
         doAddConnection(new AsynchronousConnection(connection, executor));
     }
 
-    private void doAddConnection(Connection connection) {
+    /**
+     * Stop sending heartbeats and release the handler threads once the tasks that are already queued are done.
+     * Connections should be disconnected first: messages they receive afterwards are not handled anymore.
+     */
+    public void shutdown() {
+        heartbeatManager.stop();
+        executor.shutdown();
+    }
+
+    private void doAddConnection(AsynchronousConnection connection) {
         connections.add(connection);
 
         connection.setDisconnectHandler(() -> disconnectListener.accept(connection));
@@ -206,22 +301,32 @@ public class ConnectionManager implements Messenger<ByteBuf> {
             connection.disconnect();
         });
         // on receive
-        connection.setMessageHandler(message -> handleRawMessage(connection, message));
+        connection.setInlineMessageHandler(message -> handleRawMessage(connection, message));
         subscribedChannels.onConnected(connection);
         heartbeatManager.onConnected(connection);
+        topologyManager.onConnected(connection);
     }
 
     /**
-     * Handle a raw (encoded) message from the given connection.
+     * Handle a raw (encoded) message from the given connection. Called on the network thread: the header is read and
+     * duplicates are dropped here, the rest is handled on the inbound lane of the connection unless the channel is
+     * inline.
      */
-    private void handleRawMessage(Connection connection, ByteBuf message) {
-        int startIndex = message.readerIndex();
+    private void handleRawMessage(AsynchronousConnection connection, ByteBuf message) {
+        try {
+            handleRawMessage0(connection, message);
+        } finally {
+            message.release();
+        }
+    }
 
+    private void handleRawMessage0(AsynchronousConnection connection, ByteBuf message) {
         receivedPacketCountIncludingDuplicates.incrementAndGet();
 
         // read packet ID
+        boolean fragmented = message.readableBytes() > FRAGMENTED_PACKET_LENGTH;
         long packetId = message.readLong();
-        if (!packetDistinctionHandler.register(packetId)) {
+        if (!(fragmented ? packetIdScheme.registerReordered(packetId) : packetIdScheme.register(packetId))) {
             // already received, do not handle again
             Log.debug(logger, () -> "Duplicate packet " + packetId);
             return;
@@ -234,95 +339,289 @@ public class ConnectionManager implements Messenger<ByteBuf> {
 
         receivedPacketCount.incrementAndGet();
 
-        Stream<Connection> forwards = handleDecodedMessage(connection, compressor.decode(message), packetId);
+        // number of times this packet may still be forwarded
+        int hopsLeft = message.readUnsignedByte();
+        // priority class the packet is forwarded with
+        int priorityId = message.readUnsignedByte();
+        Priority priority = priorityId < PRIORITIES.length ? PRIORITIES[priorityId] : Priority.NORMAL;
+
+        // read channel
+        String channelName = getAliases(connection).read(message, id -> acknowledgeAlias(connection, id));
+        if (channelName == null) {
+            logger.warn("Received packet " + Long.toHexString(packetId) + " with unknown channel ID from " +
+                        connection);
+            return;
+        }
 
-        // reset reader index so we can copy the message
-        message.readerIndex(startIndex);
+        if (inlineChannels.contains(channelName)) {
+            handleMessage(connection, message, packetId, hopsLeft, priority, channelName);
+        } else {
+            // kept until the handler thread is done with it
+            message.retain();
+            connection.executeInbound(() -> {
+                try {
+                    handleMessage(connection, message, packetId, hopsLeft, priority, channelName);
+                } finally {
+                    message.release();
+                }
+            });
+        }
+    }
+
+    /**
+     * Decode a message whose header was already read, handle it and forward it to other connections.
+     */
+    private void handleMessage(Connection connection,
+                               ByteBuf message,
+                               long packetId,
+                               int hopsLeft,
+                               Priority priority,
+                               String channelName) {
+        // the (compressed) body is shared between all connections we forward to
+        ByteBuf body = message.slice();
+        ByteBuf decoded = compressor.decode(message);
+        Connection[] forwards;
+        try {
+            forwards = handleDecodedMessage(connection, channelName, decoded, packetId);
+        } finally {
+            if (decoded != message) {
+                decoded.release();
+            }
+        }
+
+        if (hopsLeft == 0) {
+            // hop limit reached
+            return;
+        }
+        // unicast packets were already routed by handleDecodedMessage
+        boolean useTree = routingMode == RoutingMode.SPANNING_TREE && !InternalProtocol.UNICAST.equals(channelName);
         // forward packet to other connections that listen to this channel
-        forwards
-                // except the origin of the packet (they already got it)
-                .filter(other -> other != connection)
-                        // send
-                .forEach(other -> copyAndSend(other, message));
+        for (Connection other : forwards) {
+            // except the origin of the packet (they already got it) and nodes that get it from someone else
+            if (other != connection && (!useTree || topologyManager.shouldForward(packetId, other))) {
+                sendShared(other, packetId, hopsLeft - 1, priority, channelName, body);
+            }
+        }
     }
 
     /**
      * Handle a decoded message from the given connection.
      *
-     * @return a stream of connections the message should be forwarded to.
+     * @return the connections the message should be forwarded to.
      */
-    private Stream<Connection> handleDecodedMessage(Connection sender, ByteBuf decoded, long id) {
-        // read channel name
-        String channelName = InternalProtocol.readByteString(decoded);
-
+    private Connection[] handleDecodedMessage(Connection sender, String channelName, ByteBuf decoded, long id) {
         Log.debug(logger,
                 () -> "Received packet " + Long.toHexString(id) + " in channel '" + channelName + "' (" +
                         decoded.readableBytes() + " bytes)");
 
+        if (InternalProtocol.UNICAST.equals(channelName)) {
+            return handleUnicast(decoded);
+        }
+
         // handle internally
         BiConsumer<ByteBuf, Connection> internalHandler = internalHandlers.get(channelName);
         if (internalHandler != null) {
             internalHandler.accept(decoded, sender);
             // internally handled, do not handle in user code or forward
-            return Stream.empty();
+            return NO_CONNECTIONS;
+        }
+
+        deliver(channelName, decoded);
+        return subscriptionIndex.get(channelName);
+    }
+
+    /**
+     * Handle a decoded unicast packet: deliver it if it is addressed to us.
+     *
+     * @return the connection the packet should be forwarded to.
+     */
+    private Connection[] handleUnicast(ByteBuf decoded) {
+        int destination = decoded.readInt();
+        if (destination == topologyManager.getSelf()) {
+            String channelName = InternalProtocol.readByteString(decoded);
+            deliver(channelName, decoded);
+            return NO_CONNECTIONS;
+        }
+        return route(destination);
+    }
+
+    /**
+     * The connections a unicast packet to the given node should be sent to: the next hop on the shortest path or, if
+     * we don't know a path (yet), all of them.
+     */
+    private Connection[] route(int destination) {
+        Optional<Connection> nextHop = topologyManager.getNextHop(destination);
+        if (nextHop.isPresent()) {
+            return new Connection[]{nextHop.get()};
         }
+        Log.debug(logger, () -> "No route to " + Integer.toHexString(destination) + " yet, flooding");
+        return connections.toArray(NO_CONNECTIONS);
+    }
 
-        // handle payload in listeners
+    /**
+     * Pass a payload to the local listeners of the given channel. Every listener gets its own read-only view of the
+     * decoded payload with independent indices instead of a copy, so the number of listeners does not multiply the
+     * bytes copied. The views share the reference count of the payload.
+     */
+    private void deliver(String channelName, ByteBuf decoded) {
         Collection<Consumer<ByteBuf>> subs = listeners.getOrDefault(channelName, Collections.emptySet());
-        if (!subs.isEmpty()) {
-            subs.forEach(listener -> listener.accept(decoded.copy()));
+        for (Consumer<ByteBuf> listener : subs) {
+            listener.accept(Unpooled.unmodifiableBuffer(decoded));
         }
-        return getConnectionsSubscribedTo(channelName);
     }
 
     /**
-     * Send a packet to the given connections.
+     * Get the channel ID table of the given connection.
+     */
+    private ChannelAliases getAliases(Connection connection) {
+        return (ChannelAliases) connection.properties().computeIfAbsent(PROPERTY_ALIASES, k -> new ChannelAliases());
+    }
+
+    /**
+     * Tell the given connection that we now know the channel ID it announced.
+     */
+    private void acknowledgeAlias(Connection connection, int id) {
+        ByteBuf ack = allocator.buffer(VarInt.MAX_LENGTH);
+        VarInt.write(ack, id);
+        sendPacket(InternalProtocol.ALIAS, Stream.of(connection), ack);
+    }
+
+    /**
+     * Send an internal packet to the given connections. Internal packets only go to direct neighbors.
+     *
+     * @see #sendPacket(String, ChannelOptions, java.util.stream.Stream, io.netty.buffer.ByteBuf)
+     */
+    void sendPacket(String channel, Stream<Connection> receivers, ByteBuf payload) {
+        sendPacket(channel, INTERNAL_OPTIONS, receivers, payload);
+    }
+
+    /**
+     * Send a packet to the given connections. A packet consists of a long packet ID, an unsigned byte with the number
+     * of remaining forwards, an unsigned byte with the Priority ordinal, a channel reference (see ChannelAliases) and
+     * the compressed payload.
      *
-     * @param channel   The encoded channel this packet should be sent on.
+     * @param channel   The channel this packet should be sent on.
+     * @param options   The options of the channel.
      * @param receivers The connections it should be forwarded to.
-     * @param payload   The payload of the packet that will be received by the other nodes.
+     * @param payload   The payload of the packet that will be received by the other nodes. Released by this method.
      */
-    void sendPacket(byte[] channel, Stream<Connection> receivers, ByteBuf payload) {
-        long packetId = generateUniqueId();
+    void sendPacket(String channel, ChannelOptions options, Stream<Connection> receivers, ByteBuf payload) {
+        int hopsLeft = options.getMaxHops() - 1;
+        Priority priority = options.getPriority();
+        long packetId = packetIdScheme.nextId();
 
         if (Log.isDebug(logger)) {
             List<Connection> connectionList = receivers.collect(Collectors.toList());
-            logger.debug("Transmitting packet " + Long.toHexString(packetId) + " in channel '" + new String(channel) +
+            logger.debug("Transmitting packet " + Long.toHexString(packetId) + " in channel '" + channel +
                     "' (" + payload.readableBytes() + " bytes) to " + connectionList);
             receivers = connectionList.stream();
         }
         // encode
-        ByteBuf full = InternalProtocol.encodePacket(channel, packetId, payload, compressor);
+        ByteBuf body;
+        try {
+            body = compressor.encode(payload);
+        } catch (Throwable t) {
+            payload.release();
+            throw t;
+        }
+        if (body != payload) {
+            // the compressor does not release its input
+            payload.release();
+        }
 
-        // transmit to all given connections
-        receivers.forEach(connection -> copyAndSend(connection, full));
+        try {
+            // transmit to all given connections
+            receivers.forEach(connection -> sendShared(connection, packetId, hopsLeft, priority, channel, body));
+        } finally {
+            body.release();
+        }
+    }
+
+    /**
+     * Send a packet to a single node. The packet is only forwarded along the shortest path to that node and
+     * delivered to the listeners of the given channel there; nodes in between don't need to subscribe. If no path is
+     * known yet it is flooded to all nodes instead.
+     *
+     * @param destination The node ID of the receiver, see #getNodeId.
+     * @param payload     The payload of the packet. Released by this method.
+     */
+    void sendUnicast(int destination, String channel, ByteBuf payload) {
+        byte[] channelName = channel.getBytes(StandardCharsets.UTF_8);
+        if (channelName.length > MAX_CHANNEL_NAME_LENGTH) {
+            payload.release();
+            throw new UnsupportedOperationException("Maximum channel name length is " + MAX_CHANNEL_NAME_LENGTH);
+        }
+
+        if (destination == topologyManager.getSelf()) {
+            try {
+                deliver(channel, payload);
+            } finally {
+                payload.release();
+            }
+            return;
+        }
+
+        // [int destination][byte string channel][payload]
+        ByteBuf header = allocator.buffer(4 + 1 + channelName.length);
+        header.writeInt(destination);
+        InternalProtocol.writeByteArray(header, channelName);
+        sendPacket(InternalProtocol.UNICAST,
+                   ChannelOptions.DEFAULT,
+                   Arrays.stream(route(destination)),
+                   Unpooled.wrappedBuffer(header, payload));
+    }
+
+    /**
+     * Get our own node ID as used by #sendUnicast.
+     */
+    int getNodeId() {
+        return topologyManager.getSelf();
     }
 
     /**
-     * Send a raw packet (with header fields already included) to the given connection. The given ByteBuf will not be
-     * modified.
+     * Get the node ID of the node that announced the given identity, see #setIdentity.
      */
-    private void copyAndSend(Connection connection, ByteBuf full) {
-        ByteBuf copy = full.copy();
-        // 8 for packet ID, at least 1 for channel name or we're doing something wrong
-        assert copy.readableBytes() > 9 : Arrays.toString(copy.array());
-        connection.send(copy);
+    OptionalInt getNodeId(byte[] identity) {
+        return topologyManager.getNodeId(identity);
     }
 
     /**
-     * Get a Set of all channels that connection is subscribed to.
+     * Set the identity other nodes can find this node by through #getNodeId. Maximum length 0xff bytes.
      */
-    private Set<String> getSubscribedChannels(Connection connection) {
-        return subscribedChannels.getTheirEntries(connection);
+    void setIdentity(byte[] identity) {
+        topologyManager.setIdentity(identity);
+    }
+
+    /**
+     * Send a packet to the given connection. The header (packet ID, hop limit, priority and channel reference) is
+     * written per connection because channel IDs differ between connections, the body is not modified or copied: the
+     * connection receives a retained duplicate that shares its content, so the same bytes can be written to any number
+     * of connections. The caller keeps its own reference.
+     */
+    private void sendShared(Connection connection,
+                            long packetId,
+                            int hopsLeft,
+                            Priority priority,
+                            String channel,
+                            ByteBuf body) {
+        ByteBuf header = allocator.buffer(HEADER_CAPACITY);
+        try {
+            header.writeLong(packetId);
+            header.writeByte(hopsLeft);
+            header.writeByte(priority.ordinal());
+            getAliases(connection).write(header, channel);
+        } catch (Throwable t) {
+            header.release();
+            throw t;
+        }
+        connection.send(Unpooled.wrappedBuffer(header, body.duplicate().retain()), priority);
     }
 
     /**
      * Get all connections subscribed to a given channel.
      */
     private Stream<Connection> getConnectionsSubscribedTo(String channelName) {
-        return connections.parallelStream()
-                // where subscribed
-                .filter(connection -> getSubscribedChannels(connection).contains(channelName));
+        return Arrays.stream(subscriptionIndex.get(channelName));
     }
 
     /**
@@ -332,14 +631,27 @@ public class ConnectionManager implements Messenger<ByteBuf> {
         disconnectListener = disconnectListener.andThen(onDisconnected);
     }
 
+    /**
+     * The allocator used for packet buffers. Publishers should use this allocator for payloads.
+     */
+    @Override
+    public ByteBufAllocator alloc() {
+        return allocator;
+    }
+
     /**
      * Get a channel implementation by name.
      */
     @Override
     public Channel<ByteBuf> getChannel(String name) {
-        // encode
-        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
-        if (nameBytes.length > MAX_CHANNEL_NAME_LENGTH) {
+        return getChannel(name, ChannelOptions.DEFAULT);
+    }
+
+    /**
+     * Get a channel implementation by name that publishes with the given options.
+     */
+    public Channel<ByteBuf> getChannel(String name, ChannelOptions options) {
+        if (name.getBytes(StandardCharsets.UTF_8).length > MAX_CHANNEL_NAME_LENGTH) {
             throw new UnsupportedOperationException("Maximum channel name length is " + MAX_CHANNEL_NAME_LENGTH);
         }
 
@@ -347,11 +659,14 @@ public class ConnectionManager implements Messenger<ByteBuf> {
             @Override
             public void publish(ByteBuf message) {
                 // send
-                sendPacket(nameBytes, getConnectionsSubscribedTo(name), message);
+                sendPacket(name, options, getConnectionsSubscribedTo(name), message);
             }
 
             @Override
             public void subscribe(Consumer<ByteBuf> listener) {
+                if (options.isInline()) {
+                    inlineChannels.add(name);
+                }
                 // listen
                 subscribedChannels.add(name);
                 listeners.computeIfAbsent(name, key -> new CopyOnWriteArrayList<>()).add(listener);
@@ -359,16 +674,44 @@ public class ConnectionManager implements Messenger<ByteBuf> {
         };
     }
 
-    private long generateUniqueId() {
-        // find a unique packet ID
-        long packetId;
-        do {
-            packetId = PACKET_ID_GENERATOR.nextLong();
-            // this loop isn't much slower than just assuming the ID is unused so we might as well check for
-            // uniqueness, no matter how unlikely a collision is
-        } while (!packetDistinctionHandler.register(packetId));
+    /**
+     * Add a listener to the given channel without subscribing to it in the network: it only receives unicast packets
+     * sent to us.
+     */
+    void addLocalListener(String channel, Consumer<ByteBuf> listener) {
+        listeners.computeIfAbsent(channel, key -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    /**
+     * Remove a listener added with #addLocalListener.
+     */
+    void removeLocalListener(String channel, Consumer<ByteBuf> listener) {
+        Collection<Consumer<ByteBuf>> channelListeners = listeners.get(channel);
+        if (channelListeners != null) {
+            channelListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Number of sends and handler invocations waiting to be run on all connections.
+     */
+    public int getQueuedTaskCount() {
+        return connections.stream()
+                .filter(connection -> connection instanceof AsynchronousConnection)
+                .mapToInt(connection -> ((AsynchronousConnection) connection).getQueueDepth())
+                .sum();
+    }
 
-        return packetId;
+    /**
+     * Largest number of tasks that were waiting on a single connection lane at the same time, over all current
+     * connections.
+     */
+    public int getMaxQueueDepth() {
+        return connections.stream()
+                .filter(connection -> connection instanceof AsynchronousConnection)
+                .mapToInt(connection -> ((AsynchronousConnection) connection).getMaxQueueDepth())
+                .max()
+                .orElse(0);
     }
 
     /**
@@ -384,4 +727,12 @@ public class ConnectionManager implements Messenger<ByteBuf> {
     public long getReceivedPacketCountIncludingDuplicates() {
         return receivedPacketCountIncludingDuplicates.get();
     }
+
+    /**
+     * Number of received packets that were dropped because they arrived too late to tell whether they are duplicates,
+     * see PacketIdMode#SEQUENTIAL.
+     */
+    public long getTooOldPacketCount() {
+        return packetIdScheme.getTooOldCount();
+    }
 }
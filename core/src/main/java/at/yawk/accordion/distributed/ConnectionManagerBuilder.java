@@ -0,0 +1,118 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.distributed;
+
+import at.yawk.accordion.Log;
+import at.yawk.accordion.compression.Compressor;
+import at.yawk.accordion.compression.VoidCompressor;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.util.Optional;
+import org.slf4j.Logger;
+
+/**
+ * Builder class for ConnectionManager.
+ *
+ * @author yawkat
+ */
+public class ConnectionManagerBuilder {
+    private Optional<ThreadGroup> threadGroup = Optional.empty();
+    private Optional<Logger> logger = Optional.empty();
+    private Compressor compressor = VoidCompressor.getInstance();
+    private ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+    private PacketIdMode packetIdMode = PacketIdMode.SEQUENTIAL;
+    private RoutingMode routingMode = RoutingMode.FLOOD;
+    private ExecutionMode executionMode = ExecutionMode.PLATFORM_THREADS;
+    private int handlerThreads = ConnectionManager.DEFAULT_HANDLER_THREADS;
+
+    ConnectionManagerBuilder() {}
+
+    /**
+     * What thread group should be used for internal threads. Defaults to the thread group of the security manager or
+     * the calling thread.
+     */
+    public ConnectionManagerBuilder threadGroup(ThreadGroup threadGroup) {
+        this.threadGroup = Optional.of(threadGroup);
+        return this;
+    }
+
+    /**
+     * What logger we should use. Defaults to Log.getDefaultLogger.
+     */
+    public ConnectionManagerBuilder logger(Logger logger) {
+        this.logger = Optional.of(logger);
+        return this;
+    }
+
+    /**
+     * What compressor to use for messages. There is no check that two nodes use the same compressor. Defaults to no
+     * compression.
+     */
+    public ConnectionManagerBuilder compressor(Compressor compressor) {
+        this.compressor = compressor;
+        return this;
+    }
+
+    /**
+     * What allocator to use for packet buffers. Defaults to the pooled (direct if possible) allocator.
+     */
+    public ConnectionManagerBuilder allocator(ByteBufAllocator allocator) {
+        this.allocator = allocator;
+        return this;
+    }
+
+    /**
+     * How packet IDs are generated and duplicates detected. All nodes of a network must use the same mode. Defaults to
+     * PacketIdMode.SEQUENTIAL.
+     */
+    public ConnectionManagerBuilder packetIdMode(PacketIdMode packetIdMode) {
+        this.packetIdMode = packetIdMode;
+        return this;
+    }
+
+    /**
+     * How received packets are forwarded to other nodes. RoutingMode.SPANNING_TREE requires PacketIdMode.SEQUENTIAL.
+     * Defaults to RoutingMode.FLOOD.
+     */
+    public ConnectionManagerBuilder routingMode(RoutingMode routingMode) {
+        this.routingMode = routingMode;
+        return this;
+    }
+
+    /**
+     * What threads should send packets and call message handlers. Falls back to ExecutionMode.PLATFORM_THREADS if the
+     * given mode is not available on this JVM. Defaults to ExecutionMode.PLATFORM_THREADS.
+     */
+    public ConnectionManagerBuilder executionMode(ExecutionMode executionMode) {
+        this.executionMode = executionMode;
+        return this;
+    }
+
+    /**
+     * How many threads should send packets and call message handlers with ExecutionMode.PLATFORM_THREADS. Messages of
+     * a single connection are always handled in order. Blocking handlers (or sends blocked by OverflowPolicy.BLOCK)
+     * hold one of these threads. Defaults to the number of cores, at least 2.
+     */
+    public ConnectionManagerBuilder handlerThreads(int handlerThreads) {
+        this.handlerThreads = handlerThreads;
+        return this;
+    }
+
+    /**
+     * Build this ConnectionManager.
+     */
+    public ConnectionManager build() {
+        return new ConnectionManager(threadGroup.orElseGet(ConnectionManager::getDefaultThreadGroup),
+                                     logger.orElseGet(Log::getDefaultLogger),
+                                     compressor,
+                                     allocator,
+                                     packetIdMode,
+                                     routingMode,
+                                     executionMode,
+                                     handlerThreads);
+    }
+}
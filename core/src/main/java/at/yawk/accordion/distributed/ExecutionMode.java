@@ -0,0 +1,93 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.distributed;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * What threads send packets and call message handlers. Messages of a single connection are handled in order in every
+ * mode (see AsynchronousConnection).
+ *
+ * @author yawkat
+ */
+public enum ExecutionMode {
+    /**
+     * A fixed pool of platform threads. Blocking handlers hold one of the pool threads while they block. This is the
+     * default.
+     */
+    PLATFORM_THREADS {
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        ExecutorService createExecutor(ThreadGroup threadGroup, int threads) {
+            return Executors.newFixedThreadPool(threads, r -> new Thread(threadGroup,
+                                                                         r,
+                                                                         "Accordion handler thread #" +
+                                                                         threadId.incrementAndGet()));
+        }
+    },
+    /**
+     * A new virtual thread for every task, so handlers that block (for example on database lookups) do not occupy
+     * platform threads. The thread group and thread count are ignored. Requires Java 21 or later.
+     */
+    VIRTUAL_THREADS {
+        @Override
+        public boolean isAvailable() {
+            return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+        }
+
+        @Override
+        ExecutorService createExecutor(ThreadGroup threadGroup, int threads) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new UnsupportedOperationException("Could not create virtual thread executor", e);
+            }
+        }
+    };
+
+    private static final AtomicInteger threadId = new AtomicInteger();
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor, looked up reflectively because we are compiled for Java 8. null if
+     * this JVM has no virtual threads.
+     */
+    private static final Method NEW_VIRTUAL_THREAD_EXECUTOR;
+
+    static {
+        Method method;
+        try {
+            method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            method = null;
+        }
+        NEW_VIRTUAL_THREAD_EXECUTOR = method;
+    }
+
+    /**
+     * Returns whether this mode can be used on this JVM.
+     */
+    public abstract boolean isAvailable();
+
+    /**
+     * Returns this mode if it is available or PLATFORM_THREADS as a fallback otherwise.
+     */
+    public ExecutionMode orFallback() {
+        return isAvailable() ? this : PLATFORM_THREADS;
+    }
+
+    /**
+     * Create the executor that backs the serial lanes of all connections.
+     */
+    abstract ExecutorService createExecutor(ThreadGroup threadGroup, int threads);
+}
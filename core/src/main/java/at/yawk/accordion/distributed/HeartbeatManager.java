@@ -69,6 +69,13 @@ class HeartbeatManager {
         heartbeat.scheduleAtFixedRate(this::beat, 0, SEND_INTERVAL, TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * Stop sending heartbeats and release the heartbeat thread.
+     */
+    public void stop() {
+        heartbeat.shutdown();
+    }
+
     /**
      * Send a heartbeat to all connected servers and check if they are still online.
      */
@@ -77,7 +84,7 @@ class HeartbeatManager {
             // send heartbeat
             try {
                 connectionManager
-                        .sendPacket(InternalProtocol.HEARTBEAT_BYTES, Stream.of(connection), Unpooled.EMPTY_BUFFER);
+                        .sendPacket(InternalProtocol.HEARTBEAT, Stream.of(connection), Unpooled.EMPTY_BUFFER);
             } catch (Throwable t) {
                 connectionManager.getLogger().error("Failed to send heartbeat to " + connection, t);
             }
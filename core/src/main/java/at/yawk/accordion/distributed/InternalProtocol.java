@@ -6,9 +6,7 @@
 
 package at.yawk.accordion.distributed;
 
-import at.yawk.accordion.compression.Compressor;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import java.nio.charset.StandardCharsets;
 
 /**
@@ -29,18 +27,26 @@ class InternalProtocol {
      * Channel used for handshake packet.
      */
     static final String WELCOME = "acc.hi";
-    /**
-     * Encoded #WELCOME.
-     */
-    static final byte[] WELCOME_BYTES = WELCOME.getBytes(StandardCharsets.UTF_8);
     /**
      * Channel used for heartbeat handler.
      */
     static final String HEARTBEAT = "acc.bea";
     /**
-     * Encoded #HEARTBEAT.
+     * Channel used to acknowledge channel IDs, see ChannelAliases.
+     */
+    static final String ALIAS = "acc.ali";
+    /**
+     * Channel used to tell a new neighbor our node ID, see TopologyManager.
+     */
+    static final String IDENTIFY = "acc.id";
+    /**
+     * Channel used to flood neighbor lists, see TopologyManager.
+     */
+    static final String TOPOLOGY = "acc.top";
+    /**
+     * Channel used for packets addressed to a single node, see ConnectionManager#sendUnicast.
      */
-    static final byte[] HEARTBEAT_BYTES = HEARTBEAT.getBytes(StandardCharsets.UTF_8);
+    static final String UNICAST = "acc.uni";
 
     /**
      * Read a string written with #writeByteString.
@@ -72,24 +78,4 @@ class InternalProtocol {
         to.writeByte(array.length);
         to.writeBytes(array);
     }
-
-    /**
-     * Encode a packet to be read by other nodes.
-     */
-    static ByteBuf encodePacket(byte[] typeBytes, long id, ByteBuf payload, Compressor compressor) {
-        ByteBuf body = Unpooled.buffer();
-        // channel
-        writeByteArray(body, typeBytes);
-        // payload
-        body.writeBytes(payload);
-
-        ByteBuf compressedBody = compressor.encode(body);
-
-        ByteBuf full = Unpooled.buffer();
-        // id header
-        full.writeLong(id);
-        // body
-        full.writeBytes(compressedBody);
-        return full;
-    }
 }
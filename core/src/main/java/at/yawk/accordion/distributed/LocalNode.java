@@ -11,11 +11,14 @@ import at.yawk.accordion.netty.Connection;
 import at.yawk.accordion.netty.Connector;
 import at.yawk.accordion.netty.Server;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import java.net.SocketAddress;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalInt;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Stream;
 import lombok.Getter;
@@ -40,6 +43,10 @@ public class LocalNode {
      * Connector used to spawn new Connections.
      */
     private final Connector connector;
+    /**
+     * Whether our connector should be shut down with us, false if it is shared with other nodes.
+     */
+    private final boolean ownsConnector;
 
     /**
      * Our node entry that we should send to other servers so they know who we are.
@@ -62,23 +69,36 @@ public class LocalNode {
      * Map of connections to their respective nodes.
      */
     private final Map<Connection, Node> connectionsToNodes = new ConcurrentHashMap<>();
+    /**
+     * Connection attempts that are currently in progress.
+     */
+    private final Map<Node, CompletableFuture<Connection>> pendingConnections = new ConcurrentHashMap<>();
 
     /**
      * Connection listener that is called on connection updates.
      */
     private final ConnectionListener connectionListener;
 
+    /**
+     * Our server if #listen was called.
+     */
+    private Optional<Server> server = Optional.empty();
+
     LocalNode(ConnectionManager connectionManager,
               Connector connector,
+              boolean ownsConnector,
               Node self,
               SocketAddress listenerAddress,
               ConnectionListenerFactory connectionListenerFactory) {
 
         this.connectionManager = connectionManager;
         this.connector = connector;
+        this.ownsConnector = ownsConnector;
         this.self = self;
         this.listenerAddress = listenerAddress;
         this.connectionListener = connectionListenerFactory.createConnectionListener(this);
+        // let other nodes find us for #send
+        connectionManager.setIdentity(identityOf(self));
 
         remoteNodes = new BasicCollectionSynchronizer<Node>(this.connectionManager,
                                                             InternalProtocol.SYNC_NODES,
@@ -142,6 +162,22 @@ public class LocalNode {
         });
         // bind
         server.bind();
+        this.server = Optional.of(server);
+    }
+
+    /**
+     * Stop our server, disconnect from all nodes and release the threads of our connector unless it was passed to
+     * LocalNodeBuilder#connector.
+     */
+    public void shutdown() {
+        Log.info(getLogger(), () -> "Shutting down");
+        server.ifPresent(Server::unbind);
+        server = Optional.empty();
+        connectionManager.getConnections().forEach(Connection::disconnect);
+        connectionManager.shutdown();
+        if (ownsConnector) {
+            connector.shutdown();
+        }
     }
 
     /**
@@ -153,27 +189,75 @@ public class LocalNode {
         remoteNodes.onConnected(connection);
 
         // handshake
-        connectionManager.sendPacket(InternalProtocol.WELCOME_BYTES,
+        connectionManager.sendPacket(InternalProtocol.WELCOME,
                                      Stream.of(connection),
-                                     Node.getCodec().encode(self));
+                                     Node.getCodec().encode(connectionManager.alloc(), self));
     }
 
     /**
-     * Attempt to connect to the given node.
-     */
-    public void connect(Node other) {
-        Optional<Connection> op = connector.connect(other.getAddress());
-        if (op.isPresent()) {
-            // successful
-            op.get().properties().put(PROPERTY_IS_THIS_SERVER, false);
-            addConnection(op.get());
-            connectionListener.preConnected(Optional.of(other), false);
-            Log.info(getLogger(), () -> "Connected to " + other);
-        } else {
-            // failed
-            connectionListener.connectionAttemptFailed(other);
-            Log.info(getLogger(), () -> "Failed to connect to " + other);
+     * Attempt to connect to the given node without blocking. If an attempt to that node is already in progress, its
+     * future is returned instead of starting a new one. The returned future completes exceptionally if the attempt
+     * fails.
+     */
+    public CompletableFuture<Connection> connect(Node other) {
+        CompletableFuture<Connection> future = new CompletableFuture<>();
+        CompletableFuture<Connection> pending = pendingConnections.putIfAbsent(other, future);
+        if (pending != null) {
+            return pending;
         }
+
+        connector.connect(other.getAddress()).whenComplete((connection, error) -> {
+            pendingConnections.remove(other, future);
+            if (connection != null) {
+                // successful
+                connection.properties().put(PROPERTY_IS_THIS_SERVER, false);
+                addConnection(connection);
+                connectionListener.preConnected(Optional.of(other), false);
+                Log.info(getLogger(), () -> "Connected to " + other);
+                future.complete(connection);
+            } else {
+                // failed
+                connectionListener.connectionAttemptFailed(other);
+                Log.info(getLogger(), () -> "Failed to connect to " + other);
+                future.completeExceptionally(error);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Send a packet to a single node, which may be any node in the network, not only a direct neighbor. It is routed
+     * along the shortest path and received by the listeners of the given channel on the target node.
+     *
+     * @param payload The payload of the packet. Released by this method.
+     * @return false if the target node is not known in the network (the payload is released regardless).
+     */
+    public boolean send(Node target, String channel, ByteBuf payload) {
+        OptionalInt nodeId = connectionManager.getNodeId(identityOf(target));
+        if (!nodeId.isPresent()) {
+            payload.release();
+            return false;
+        }
+        connectionManager.sendUnicast(nodeId.getAsInt(), channel, payload);
+        return true;
+    }
+
+    /**
+     * The identity of a node in the topology: its encoded form.
+     */
+    private static byte[] identityOf(Node node) {
+        ByteBuf encoded = Unpooled.buffer();
+        node.write(encoded);
+        byte[] identity = new byte[encoded.readableBytes()];
+        encoded.readBytes(identity);
+        return identity;
+    }
+
+    /**
+     * Get all nodes we are currently trying to connect to.
+     */
+    public Set<Node> getConnectingNodes() {
+        return Collections.unmodifiableSet(pendingConnections.keySet());
     }
 
     /**
@@ -203,7 +287,7 @@ public class LocalNode {
     }
 
     /**
-     * Get an encoded representation of all nodes we know about.
+     * Get an encoded representation of all nodes we know about. The caller has to release the returned buffer.
      */
     public ByteBuf getKnownNodesEncoded() {
         return remoteNodes.encode();
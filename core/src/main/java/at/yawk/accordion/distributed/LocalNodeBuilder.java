@@ -8,13 +8,20 @@ package at.yawk.accordion.distributed;
 
 import at.yawk.accordion.Log;
 import at.yawk.accordion.compression.Compressor;
-import at.yawk.accordion.compression.VoidCompressor;
+import at.yawk.accordion.netty.Connector;
+import at.yawk.accordion.netty.FlushPolicy;
 import at.yawk.accordion.netty.NettyConnector;
+import at.yawk.accordion.netty.NettyConnectorBuilder;
+import at.yawk.accordion.netty.OverflowPolicy;
+import at.yawk.accordion.netty.Transport;
+import io.netty.buffer.ByteBufAllocator;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.UnknownHostException;
+import java.nio.file.Path;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 
 /**
@@ -28,8 +35,10 @@ public class LocalNodeBuilder {
     private Optional<Node> self = Optional.empty();
     private Optional<ConnectionListenerFactory> connectionListenerFactory = Optional.empty();
     private Optional<ThreadGroup> threadGroup = Optional.empty();
+    private Optional<Connector> connector = Optional.empty();
 
-    private Compressor compressor = VoidCompressor.getInstance();
+    private final ConnectionManagerBuilder connectionManagerBuilder = ConnectionManager.builder();
+    private final NettyConnectorBuilder connectorBuilder = NettyConnector.builder();
 
     public LocalNodeBuilder() {}
 
@@ -77,7 +86,135 @@ public class LocalNodeBuilder {
      * What compressor to use for messages. Defaults to no compression.
      */
     public LocalNodeBuilder compressor(Compressor compressor) {
-        this.compressor = compressor;
+        connectionManagerBuilder.compressor(compressor);
+        return this;
+    }
+
+    /**
+     * What allocator to use for network and packet buffers. Defaults to the pooled (direct if possible) allocator.
+     */
+    public LocalNodeBuilder allocator(ByteBufAllocator allocator) {
+        connectionManagerBuilder.allocator(allocator);
+        connectorBuilder.allocator(allocator);
+        return this;
+    }
+
+    /**
+     * How packet IDs are generated and duplicates detected. All nodes of a network must use the same mode. Defaults to
+     * PacketIdMode.SEQUENTIAL.
+     */
+    public LocalNodeBuilder packetIdMode(PacketIdMode packetIdMode) {
+        connectionManagerBuilder.packetIdMode(packetIdMode);
+        return this;
+    }
+
+    /**
+     * How received packets are forwarded to other nodes. RoutingMode.SPANNING_TREE avoids duplicate packets in meshed
+     * networks and requires PacketIdMode.SEQUENTIAL. Defaults to RoutingMode.FLOOD.
+     */
+    public LocalNodeBuilder routingMode(RoutingMode routingMode) {
+        connectionManagerBuilder.routingMode(routingMode);
+        return this;
+    }
+
+    /**
+     * What threads should send packets and call message handlers. ExecutionMode.VIRTUAL_THREADS lets handlers block
+     * without occupying platform threads on Java 21 and later and falls back to platform threads on older JVMs.
+     * Defaults to ExecutionMode.PLATFORM_THREADS.
+     */
+    public LocalNodeBuilder executionMode(ExecutionMode executionMode) {
+        connectionManagerBuilder.executionMode(executionMode);
+        return this;
+    }
+
+    /**
+     * How many threads should send packets and call message handlers with ExecutionMode.PLATFORM_THREADS. Messages
+     * from one connection are always handled in order. Defaults to the number of cores, at least 2.
+     */
+    public LocalNodeBuilder handlerThreads(int handlerThreads) {
+        connectionManagerBuilder.handlerThreads(handlerThreads);
+        return this;
+    }
+
+    /**
+     * What socket implementation to use. If the given transport is not available on this platform, NIO is used
+     * instead. Defaults to epoll on linux and NIO everywhere else.
+     */
+    public LocalNodeBuilder transport(Transport transport) {
+        connectorBuilder.transport(transport);
+        return this;
+    }
+
+    /**
+     * When messages written to connections should be flushed. FlushPolicy.batched consolidates bursts of small
+     * messages into fewer syscalls. Defaults to FlushPolicy.IMMEDIATE.
+     */
+    public LocalNodeBuilder flushPolicy(FlushPolicy flushPolicy) {
+        connectorBuilder.flushPolicy(flushPolicy);
+        return this;
+    }
+
+    /**
+     * Outbound buffer size limits per connection in bytes. A connection stops accepting messages (see #overflowPolicy)
+     * once more than highWaterMark bytes are pending and resumes when less than lowWaterMark bytes are pending.
+     * Defaults to 32 KiB and 64 KiB.
+     */
+    public LocalNodeBuilder writeBufferWaterMarks(int lowWaterMark, int highWaterMark) {
+        connectorBuilder.writeBufferWaterMarks(lowWaterMark, highWaterMark);
+        return this;
+    }
+
+    /**
+     * What to do with new messages for a slow peer whose outbound buffer is above the high water mark. Defaults to
+     * OverflowPolicy.BLOCK.
+     */
+    public LocalNodeBuilder overflowPolicy(OverflowPolicy overflowPolicy) {
+        connectorBuilder.overflowPolicy(overflowPolicy);
+        return this;
+    }
+
+    /**
+     * Directory for unix domain sockets. If set and the epoll transport is used, nodes on the same host connect
+     * through domain sockets in this directory instead of loopback TCP. All nodes on a host must use the same
+     * directory. Disabled by default.
+     */
+    public LocalNodeBuilder domainSocketDirectory(Path domainSocketDirectory) {
+        connectorBuilder.domainSocketDirectory(domainSocketDirectory);
+        return this;
+    }
+
+    /**
+     * Time after which connection attempts to other nodes fail. Defaults to 10 seconds.
+     */
+    public LocalNodeBuilder connectTimeout(long timeout, TimeUnit unit) {
+        connectorBuilder.connectTimeout(timeout, unit);
+        return this;
+    }
+
+    /**
+     * How many threads should accept incoming connections. Defaults to 1.
+     */
+    public LocalNodeBuilder bossThreads(int bossThreads) {
+        connectorBuilder.bossThreads(bossThreads);
+        return this;
+    }
+
+    /**
+     * How many threads should handle network IO of all connections. 0 uses the netty default of twice the number of
+     * cores, which is also the default.
+     */
+    public LocalNodeBuilder workerThreads(int workerThreads) {
+        connectorBuilder.workerThreads(workerThreads);
+        return this;
+    }
+
+    /**
+     * Use the given connector instead of creating a new one. This allows multiple nodes in the same JVM to share event
+     * loop threads, for example with Transport.LOCAL. The connector is not shut down together with the node. When
+     * this is set, the transport and connection settings of this builder are ignored.
+     */
+    public LocalNodeBuilder connector(Connector connector) {
+        this.connector = Optional.of(connector);
         return this;
     }
 
@@ -86,9 +223,11 @@ public class LocalNodeBuilder {
      */
     public LocalNode build() {
         Logger logger = this.logger.orElseGet(Log::getDefaultLogger);
-        ConnectionManager connectionManager = threadGroup.isPresent() ?
-                ConnectionManager.create(threadGroup.get(), logger, compressor) :
-                ConnectionManager.create(logger, compressor);
+        ThreadGroup threadGroup = this.threadGroup.orElseGet(ConnectionManager::getDefaultThreadGroup);
+        ConnectionManager connectionManager = connectionManagerBuilder
+                .threadGroup(threadGroup)
+                .logger(logger)
+                .build();
         // self is required
         Node self = this.self.orElseThrow(() -> new IllegalStateException("self must be set"));
         SocketAddress listenAddress = this.listenAddress.orElseGet(() -> {
@@ -103,8 +242,12 @@ public class LocalNodeBuilder {
         });
         ConnectionListenerFactory connectionListenerFactory =
                 this.connectionListenerFactory.orElse(NopConnectionListener::getInstance);
+        // only shut down connectors we created ourselves
+        boolean ownsConnector = !this.connector.isPresent();
+        Connector connector = this.connector.orElseGet(() -> connectorBuilder.threadGroup(threadGroup).build());
         return new LocalNode(connectionManager,
-                             NettyConnector.getInstance(),
+                             connector,
+                             ownsConnector,
                              self,
                              listenAddress,
                              connectionListenerFactory);
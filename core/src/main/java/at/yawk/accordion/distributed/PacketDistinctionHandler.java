@@ -14,7 +14,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Class used to ensure that packets are not handled multiple times. Each packet has a random long packet ID, which is
+ * Class used to ensure that packets are not handled multiple times. Each packet has a unique long packet ID, which is
  * added to this handler. When a packet is received, the network manager can check if this packet ID has already been
  * received and take appropriate action. This handler will delete its entries after they have been in it for a specific
  * time to avoid memory leaks.
@@ -28,6 +28,10 @@ class PacketDistinctionHandler {
      * We have an array of "shifts" (2) which store packet IDs for a specific time window. A thread clears the last
      * segment every 60 seconds, removing the oldest packet IDs (1 - 2 minutes old). The array is shifted by one and
      * a new shift is prepended.
+     *
+     * To avoid having all handler threads contend on one monitor, IDs are split over a fixed number of stripes by a
+     * hash of the ID. Each stripe has its own shifts and lock; an ID always maps to the same stripe so the expiry
+     * semantics are the same as with a single set.
      */
 
     /**
@@ -38,6 +42,10 @@ class PacketDistinctionHandler {
      * Interval when we should clear the oldest shift and start a new one. Defaults to one minute.
      */
     private static final long DEFAULT_CLEAR_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+    /**
+     * Number of stripes as a power of two.
+     */
+    private static final int STRIPE_BITS = 6;
 
     /**
      * Atomic integer holding the thread ID for the clearing threads created with the default thread factory.
@@ -45,9 +53,9 @@ class PacketDistinctionHandler {
     private static final AtomicInteger THREAD_ID = new AtomicInteger();
 
     /**
-     * Shifts in this distinction handler.
+     * Stripes of this distinction handler. Each stripe is its own lock.
      */
-    private final Shift[] shifts = new Shift[SEGMENT_COUNT];
+    private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
 
     /**
      * Thread used to clear shifts.
@@ -55,9 +63,9 @@ class PacketDistinctionHandler {
     private Optional<Thread> clearThread = Optional.empty();
 
     private PacketDistinctionHandler() {
-        // create shifts
-        for (int i = 0; i < SEGMENT_COUNT; i++) {
-            shifts[i] = new Shift();
+        // create stripes
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
         }
     }
 
@@ -94,7 +102,8 @@ class PacketDistinctionHandler {
      */
     public synchronized void startAutoClear(ThreadFactory threadFactory, long intervalMillis) {
         /*
-         * This doesn't use shiftLock because it's only synchronized to avoid simultaneous calls of the same method.
+         * This doesn't use the stripe locks because it's only synchronized to avoid simultaneous calls of the same
+         * method.
          */
 
         // check for running thread
@@ -123,15 +132,14 @@ class PacketDistinctionHandler {
     }
 
     /**
-     * Clear the last shift and prepend a new one to the array.
-     */
-    private synchronized void clearLastShift() {
-        Shift last = shifts[SEGMENT_COUNT - 1];
-        // shift array by one
-        System.arraycopy(shifts, 0, shifts, 1, SEGMENT_COUNT - 1);
-        // move last shift to first place and clear so it can be reused
-        shifts[0] = last;
-        last.clear();
+     * Clear the last shift of every stripe and prepend a new one.
+     */
+    private void clearLastShift() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clearLastShift();
+            }
+        }
     }
 
     /**
@@ -139,13 +147,58 @@ class PacketDistinctionHandler {
      *
      * @return Whether the registration was successful (the packet ID was not registered before).
      */
-    public synchronized boolean register(long newId) {
-        for (int i = 1; i < SEGMENT_COUNT; i++) {
-            if (shifts[i].contains(newId)) {
-                return false;
+    public boolean register(long newId) {
+        Stripe stripe = stripes[stripeIndex(newId)];
+        synchronized (stripe) {
+            return stripe.register(newId);
+        }
+    }
+
+    /**
+     * Get the stripe of the given ID. Mixes all bits of the ID so sequential IDs are spread evenly.
+     */
+    private static int stripeIndex(long id) {
+        int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return hash >>> (32 - STRIPE_BITS);
+    }
+
+    /**
+     * One stripe of IDs with its own shifts.
+     *
+     * Not thread-safe, synchronize on the stripe.
+     */
+    private static class Stripe {
+        /**
+         * Shifts in this stripe, newest first.
+         */
+        private final Shift[] shifts = new Shift[SEGMENT_COUNT];
+
+        Stripe() {
+            for (int i = 0; i < SEGMENT_COUNT; i++) {
+                shifts[i] = new Shift();
+            }
+        }
+
+        /**
+         * Clear the last shift and prepend it to the array.
+         */
+        void clearLastShift() {
+            Shift last = shifts[SEGMENT_COUNT - 1];
+            // shift array by one
+            System.arraycopy(shifts, 0, shifts, 1, SEGMENT_COUNT - 1);
+            // move last shift to first place and clear so it can be reused
+            shifts[0] = last;
+            last.clear();
+        }
+
+        boolean register(long newId) {
+            for (int i = 1; i < SEGMENT_COUNT; i++) {
+                if (shifts[i].contains(newId)) {
+                    return false;
+                }
             }
+            return shifts[0].register(newId);
         }
-        return shifts[0].register(newId);
     }
 
     /**
@@ -153,7 +206,7 @@ class PacketDistinctionHandler {
      *
      * Not thread-safe.
      */
-    private class Shift {
+    private static class Shift {
         /**
          * The set of IDs registered in this shift.
          */
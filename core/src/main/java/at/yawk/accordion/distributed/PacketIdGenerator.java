@@ -0,0 +1,63 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.distributed;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.Getter;
+
+/**
+ * Generates packet IDs that are unique by construction: the high 32 bits are a random origin ID chosen once per node,
+ * the low 32 bits are a sequence number that is incremented for each packet. Generation needs neither a lock nor a
+ * uniqueness check; IDs only repeat after 2^32 packets of the same node, long after duplicates of the first one could
+ * still be in flight.
+ *
+ * @author yawkat
+ */
+class PacketIdGenerator {
+    private static final SecureRandom ORIGIN_GENERATOR = new SecureRandom();
+
+    /**
+     * The origin ID of this node.
+     */
+    @Getter private final int origin;
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    PacketIdGenerator() {
+        this(ORIGIN_GENERATOR.nextInt());
+    }
+
+    PacketIdGenerator(int origin) {
+        this.origin = origin;
+    }
+
+    /**
+     * Generate a new packet ID.
+     */
+    long next() {
+        return compose(origin, sequence.getAndIncrement());
+    }
+
+    /**
+     * Whether the given packet ID was generated by this generator (or another one with the same origin).
+     */
+    boolean isOwn(long packetId) {
+        return origin(packetId) == origin;
+    }
+
+    static long compose(int origin, int sequence) {
+        return ((long) origin << 32) | (sequence & 0xFFFFFFFFL);
+    }
+
+    static int origin(long packetId) {
+        return (int) (packetId >>> 32);
+    }
+
+    static int sequence(long packetId) {
+        return (int) packetId;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.distributed;
+
+import java.util.concurrent.ThreadLocalRandom;
+import org.slf4j.Logger;
+
+/**
+ * How packet IDs are generated and duplicates are detected. All nodes of a network must use the same mode.
+ *
+ * @author yawkat
+ */
+public enum PacketIdMode {
+    /**
+     * Random IDs. Every received ID is remembered for one to two minutes, so memory grows with the packet rate and
+     * duplicates arriving later than that are not detected. Kept for compatibility.
+     */
+    RANDOM {
+        @Override
+        PacketIdScheme createScheme(ThreadGroup threadGroup, Logger logger, PacketIdGenerator generator) {
+            PacketDistinctionHandler handler = PacketDistinctionHandler.createAndStart(threadGroup);
+            return new PacketIdScheme() {
+                @Override
+                public long nextId() {
+                    // find a unique packet ID
+                    long packetId;
+                    do {
+                        packetId = ThreadLocalRandom.current().nextLong();
+                        // registering our own IDs also makes us drop our packets when they come back through a cycle
+                    } while (!handler.register(packetId));
+                    return packetId;
+                }
+
+                @Override
+                public boolean register(long packetId) {
+                    return handler.register(packetId);
+                }
+            };
+        }
+    },
+    /**
+     * IDs made of a per-node origin and a sequence number (see PacketIdGenerator). Duplicates are detected exactly
+     * with a sliding window per origin (see SequenceWindowFilter) using constant memory per peer. This is the default.
+     */
+    SEQUENTIAL {
+        @Override
+        PacketIdScheme createScheme(ThreadGroup threadGroup, Logger logger, PacketIdGenerator generator) {
+            SequenceWindowFilter filter = new SequenceWindowFilter(logger);
+            return new PacketIdScheme() {
+                @Override
+                public long nextId() {
+                    return generator.next();
+                }
+
+                @Override
+                public boolean register(long packetId) {
+                    // our own packets that came back through a cycle are duplicates too
+                    return !generator.isOwn(packetId) && filter.register(packetId, false);
+                }
+
+                @Override
+                public boolean registerReordered(long packetId) {
+                    return !generator.isOwn(packetId) && filter.register(packetId, true);
+                }
+
+                @Override
+                public long getTooOldCount() {
+                    return filter.getTooOldCount();
+                }
+            };
+        }
+    };
+
+    /**
+     * Create the scheme of this mode, logging to the given logger. Sequential IDs are taken from the given generator.
+     */
+    abstract PacketIdScheme createScheme(ThreadGroup threadGroup, Logger logger, PacketIdGenerator generator);
+}
@@ -0,0 +1,42 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.distributed;
+
+/**
+ * Generates the IDs of packets we send and detects duplicates among received ones. Created by PacketIdMode.
+ *
+ * @author yawkat
+ */
+interface PacketIdScheme {
+    /**
+     * Generate the ID of a new packet.
+     */
+    long nextId();
+
+    /**
+     * Register the ID of a received packet.
+     *
+     * @return false if this packet was already received (or sent by us) and should be dropped.
+     */
+    boolean register(long packetId);
+
+    /**
+     * Register the ID of a received packet that may have been overtaken by any number of later packets of its origin,
+     * see #register(long). Schemes that only remember a limited number of recent IDs accept such packets even if they
+     * are older than that.
+     */
+    default boolean registerReordered(long packetId) {
+        return register(packetId);
+    }
+
+    /**
+     * Number of received packets that were dropped because their ID was too old to tell whether it is a duplicate.
+     */
+    default long getTooOldCount() {
+        return 0;
+    }
+}
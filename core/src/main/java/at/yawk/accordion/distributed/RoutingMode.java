@@ -0,0 +1,26 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.distributed;
+
+/**
+ * How received packets are forwarded to other nodes.
+ *
+ * @author yawkat
+ */
+public enum RoutingMode {
+    /**
+     * Forward every packet to all subscribed connections except the one it came from. Cycles in the network produce
+     * duplicates that are dropped by the receivers. This is the default.
+     */
+    FLOOD,
+    /**
+     * Forward packets only along the shortest-path tree rooted at their origin so each node receives each packet once,
+     * even in meshed networks. Nodes exchange their neighbor lists to learn the topology (see TopologyManager) and
+     * flood while the topology is changing or unknown. Requires PacketIdMode.SEQUENTIAL.
+     */
+    SPANNING_TREE
+}
@@ -0,0 +1,264 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.distributed;
+
+import at.yawk.accordion.codec.ByteCodec;
+import at.yawk.accordion.codec.unsafe.CodecManager;
+import io.netty.buffer.ByteBuf;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Request / response calls between nodes on top of ConnectionManager, using the codecs of UnsafeObjectChannel.
+ * <p/>
+ * A request is published in the channel of its type to the nodes that registered a handler for it, together with a
+ * correlation ID and our node ID. Replies are sent back to us only (see ConnectionManager#sendUnicast) instead of
+ * being broadcast, so a call costs one unicast round trip. If multiple nodes handle a request type, the first reply
+ * completes the call and the others are ignored.
+ *
+ * @author yawkat
+ */
+public class RpcManager {
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+
+    /**
+     * Prefix of the channels requests are published in, followed by the request class name.
+     */
+    private static final String REQUEST_CHANNEL_PREFIX = "acc.rpc.";
+    /**
+     * Channel replies are sent to. Only used for unicast packets, never subscribed in the network.
+     */
+    private static final String REPLY_CHANNEL = "acc.rpc";
+
+    private static final byte STATUS_SUCCESS = 0;
+    private static final byte STATUS_FAILURE = 1;
+    /**
+     * Maximum length of error messages in replies: byte strings are limited to 0xff bytes, at most 4 per char.
+     */
+    private static final int MAX_ERROR_LENGTH = 0xff / 4;
+
+    private static final AtomicInteger threadId = new AtomicInteger();
+
+    private final ConnectionManager connectionManager;
+    private final CodecManager codecs;
+    private final long timeoutMillis;
+    /**
+     * Permits for calls that are waiting for a reply.
+     */
+    private final Semaphore inFlight;
+
+    private final AtomicLong nextCorrelationId = new AtomicLong();
+    /**
+     * Calls waiting for a reply by correlation ID.
+     */
+    private final Map<Long, PendingCall<?>> pendingCalls = new ConcurrentHashMap<>();
+    /**
+     * Handlers registered on this node by request type.
+     */
+    private final Map<Class<?>, Function<Object, Object>> handlers = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService timeoutExecutor;
+    /**
+     * Our listener on REPLY_CHANNEL, kept so #close can remove it.
+     */
+    private final Consumer<ByteBuf> replyListener = this::handleReply;
+
+    private RpcManager(ConnectionManager connectionManager, CodecManager codecs, long timeoutMillis, int maxInFlight) {
+        this.connectionManager = connectionManager;
+        this.codecs = codecs;
+        this.timeoutMillis = timeoutMillis;
+        this.inFlight = new Semaphore(maxInFlight);
+
+        timeoutExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(connectionManager.getThreadGroup(),
+                                       r,
+                                       "Accordion RPC timeout thread #" + threadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        connectionManager.addLocalListener(REPLY_CHANNEL, replyListener);
+    }
+
+    public static RpcManager create(ConnectionManager connectionManager) {
+        return create(connectionManager, CodecManager.getDefaultManager());
+    }
+
+    public static RpcManager create(ConnectionManager connectionManager, CodecManager codecs) {
+        return create(connectionManager, codecs, DEFAULT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param timeout     Time after which calls without reply fail with a TimeoutException.
+     * @param maxInFlight Maximum number of calls waiting for a reply at the same time. Further calls fail immediately
+     *                    with a RejectedExecutionException.
+     */
+    public static RpcManager create(ConnectionManager connectionManager,
+                                    CodecManager codecs,
+                                    long timeout,
+                                    TimeUnit unit,
+                                    int maxInFlight) {
+        return new RpcManager(connectionManager, codecs, unit.toMillis(timeout), maxInFlight);
+    }
+
+    /**
+     * Handle requests of the given type on this node. The handler is called on a handler thread of the
+     * ConnectionManager; if it throws, the call fails on the calling node.
+     */
+    @SuppressWarnings("unchecked")
+    public <Q, R> void register(Class<Q> requestType, Class<R> responseType, Function<Q, R> handler) {
+        if (handlers.putIfAbsent(requestType, (Function<Object, Object>) handler) != null) {
+            throw new IllegalStateException("Handler for " + requestType.getName() + " already registered");
+        }
+        ByteCodec<Q> requestCodec = codecs.getByteCodec(requestType);
+        ByteCodec<R> responseCodec = codecs.getByteCodec(responseType);
+        connectionManager.getChannel(REQUEST_CHANNEL_PREFIX + requestType.getName()).subscribe(message -> {
+            int replyTo = message.readInt();
+            long correlationId = message.readLong();
+
+            ByteBuf reply = connectionManager.alloc().buffer();
+            try {
+                reply.writeLong(correlationId);
+                try {
+                    R response = handler.apply(requestCodec.decode(message));
+                    reply.writeByte(STATUS_SUCCESS);
+                    responseCodec.encode(reply, response);
+                } catch (Exception e) {
+                    reply.writerIndex(8);
+                    reply.writeByte(STATUS_FAILURE);
+                    String error = String.valueOf(e);
+                    if (error.length() > MAX_ERROR_LENGTH) {
+                        error = error.substring(0, MAX_ERROR_LENGTH);
+                    }
+                    InternalProtocol.writeByteString(reply, error);
+                }
+            } catch (Throwable t) {
+                reply.release();
+                throw t;
+            }
+            connectionManager.sendUnicast(replyTo, REPLY_CHANNEL, reply);
+        });
+    }
+
+    /**
+     * Send a request to a node that handles its type.
+     *
+     * @return a future that completes with the response, or exceptionally if the call timed out, too many calls are in
+     * flight or the remote handler failed.
+     */
+    @SuppressWarnings("unchecked")
+    public <R> CompletableFuture<R> call(Object request, Class<R> responseType) {
+        Function<Object, Object> localHandler = handlers.get(request.getClass());
+        if (localHandler != null) {
+            // no need to go through the network
+            CompletableFuture<R> future = new CompletableFuture<>();
+            try {
+                future.complete((R) localHandler.apply(request));
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+            return future;
+        }
+
+        CompletableFuture<R> future = new CompletableFuture<>();
+        if (!inFlight.tryAcquire()) {
+            future.completeExceptionally(new RejectedExecutionException("Too many calls in flight"));
+            return future;
+        }
+
+        long correlationId = nextCorrelationId.getAndIncrement();
+        ByteBuf message = connectionManager.alloc().buffer();
+        try {
+            message.writeInt(connectionManager.getNodeId());
+            message.writeLong(correlationId);
+            ((ByteCodec<Object>) codecs.getByteCodec(request.getClass())).encode(message, request);
+        } catch (Throwable t) {
+            message.release();
+            inFlight.release();
+            throw t;
+        }
+
+        pendingCalls.put(correlationId, new PendingCall<>(future, codecs.getByteCodec(responseType)));
+        ScheduledFuture<?> timeout;
+        try {
+            timeout = timeoutExecutor.schedule(
+                    () -> future.completeExceptionally(new TimeoutException("No reply within " + timeoutMillis + "ms")),
+                    timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed
+            message.release();
+            pendingCalls.remove(correlationId);
+            inFlight.release();
+            future.completeExceptionally(e);
+            return future;
+        }
+        future.whenComplete((response, error) -> {
+            pendingCalls.remove(correlationId);
+            timeout.cancel(false);
+            inFlight.release();
+        });
+
+        connectionManager.getChannel(REQUEST_CHANNEL_PREFIX + request.getClass().getName()).publish(message);
+        return future;
+    }
+
+    /**
+     * Stop handling replies and cancel all calls that are still waiting for one. Calls made afterwards fail with a
+     * RejectedExecutionException. Handlers registered on this node keep answering requests.
+     */
+    public void close() {
+        connectionManager.removeLocalListener(REPLY_CHANNEL, replyListener);
+        timeoutExecutor.shutdownNow();
+        pendingCalls.values().forEach(call -> call.future.cancel(false));
+    }
+
+    private void handleReply(ByteBuf message) {
+        long correlationId = message.readLong();
+        PendingCall<?> call = pendingCalls.get(correlationId);
+        if (call == null) {
+            // timed out or already answered by another node
+            return;
+        }
+        if (message.readByte() == STATUS_SUCCESS) {
+            call.complete(message);
+        } else {
+            call.future.completeExceptionally(
+                    new IllegalStateException("Remote handler failed: " + InternalProtocol.readByteString(message)));
+        }
+    }
+
+    /**
+     * A call waiting for its reply.
+     */
+    @RequiredArgsConstructor
+    private static class PendingCall<R> {
+        private final CompletableFuture<R> future;
+        private final ByteCodec<R> responseCodec;
+
+        void complete(ByteBuf encodedResponse) {
+            try {
+                future.complete(responseCodec.decode(encodedResponse));
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.distributed;
+
+import at.yawk.accordion.Log;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+
+/**
+ * Duplicate filter for IDs generated by PacketIdGenerator, similar to IPsec anti-replay windows: for each origin we
+ * remember the highest sequence number received and a bitmap of the #WINDOW_SIZE sequence numbers below it. Each ID
+ * is accepted exactly once; IDs older than the window are rejected, counted and logged. Sequence numbers are compared
+ * with serial number arithmetic so they may wrap around.
+ * <p/>
+ * Packets that are fragmented on the way can be overtaken by any number of small packets, so no window size is large
+ * enough for them. They are registered as reordered instead: if they are older than the window they are still
+ * accepted, and the last #REORDERED_CAPACITY of them are remembered separately so their duplicates are detected.
+ *
+ * @author yawkat
+ */
+class SequenceWindowFilter {
+    /**
+     * Number of sequence numbers per window, a power of two. Packets that arrive more than this many packets of the
+     * same origin late are dropped.
+     */
+    static final int WINDOW_SIZE = 4096;
+    /**
+     * Number of reordered sequence numbers remembered per origin in addition to the window.
+     */
+    static final int REORDERED_CAPACITY = 256;
+    /**
+     * Time after which windows of origins we stopped receiving from (for example restarted nodes) are removed.
+     */
+    private static final long EXPIRY_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * Windows by origin. Copied on write so lookups need no lock; new origins are rare.
+     */
+    private volatile TIntObjectMap<Window> windows = new TIntObjectHashMap<>();
+
+    private final Logger logger;
+    /**
+     * Number of packets that were dropped because they were older than their window. These may not have been
+     * duplicates, so a growing count means packets are reordered further than #WINDOW_SIZE.
+     */
+    private final AtomicLong tooOldCount = new AtomicLong();
+
+    SequenceWindowFilter(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Register the given packet ID.
+     *
+     * @param reordered Whether the packet may be older than its window without being a duplicate.
+     * @return Whether the ID was not registered before and is not older than its window (unless reordered).
+     */
+    boolean register(long packetId, boolean reordered) {
+        int origin = PacketIdGenerator.origin(packetId);
+        Window window = windows.get(origin);
+        if (window == null) {
+            window = createWindow(origin);
+        }
+        return window.register(origin, PacketIdGenerator.sequence(packetId), reordered);
+    }
+
+    /**
+     * @see #tooOldCount
+     */
+    long getTooOldCount() {
+        return tooOldCount.get();
+    }
+
+    private synchronized Window createWindow(int origin) {
+        Window window = windows.get(origin);
+        if (window == null) {
+            long now = System.currentTimeMillis();
+            TIntObjectMap<Window> copy = new TIntObjectHashMap<>(windows.size() + 1);
+            // drop expired windows while we're copying anyway
+            windows.forEachEntry((otherOrigin, other) -> {
+                if (now - other.lastSeen <= EXPIRY_MILLIS) {
+                    copy.put(otherOrigin, other);
+                }
+                return true;
+            });
+            window = new Window();
+            copy.put(origin, window);
+            windows = copy;
+        }
+        return window;
+    }
+
+    private class Window {
+        /**
+         * Bitmap of received sequence numbers, indexed by sequence number modulo #WINDOW_SIZE.
+         */
+        private final long[] received = new long[WINDOW_SIZE / 64];
+        /**
+         * Ring buffer of the last reordered sequence numbers we accepted.
+         */
+        private final int[] reorderedSequences = new int[REORDERED_CAPACITY];
+        /**
+         * Number of valid entries in #reorderedSequences.
+         */
+        private int reorderedCount = 0;
+        /**
+         * Index in #reorderedSequences the next reordered sequence number is written to.
+         */
+        private int nextReordered = 0;
+        private boolean initialized = false;
+        /**
+         * The highest sequence number received so far.
+         */
+        private int highest;
+        private volatile long lastSeen;
+
+        synchronized boolean register(int origin, int sequence, boolean reordered) {
+            lastSeen = System.currentTimeMillis();
+            if (reordered) {
+                if (isReordered(sequence)) {
+                    return false;
+                }
+                // duplicates may arrive after this leaves the window
+                reorderedSequences[nextReordered] = sequence;
+                nextReordered = (nextReordered + 1) % REORDERED_CAPACITY;
+                reorderedCount = Math.min(reorderedCount + 1, REORDERED_CAPACITY);
+            }
+            if (!initialized) {
+                initialized = true;
+                highest = sequence;
+                set(sequence);
+                return true;
+            }
+
+            int ahead = sequence - highest;
+            if (ahead > 0) {
+                // new highest sequence number, move the window forward
+                if (ahead >= WINDOW_SIZE) {
+                    Arrays.fill(received, 0);
+                } else {
+                    for (int i = 1; i <= ahead; i++) {
+                        clear(highest + i);
+                    }
+                }
+                highest = sequence;
+                set(sequence);
+                return true;
+            }
+
+            if (-ahead >= WINDOW_SIZE) {
+                if (reordered) {
+                    // not in the reordered list, so not a duplicate
+                    Log.debug(logger, () -> "Accepting reordered packet " + sequence + " of " +
+                                            Integer.toHexString(origin) + ", " + -ahead + " behind");
+                    return true;
+                }
+                // too old, can't tell whether it's a duplicate
+                tooOldCount.incrementAndGet();
+                Log.debug(logger, () -> "Dropping packet " + sequence + " of " + Integer.toHexString(origin) + ", " +
+                                        -ahead + " behind");
+                return false;
+            }
+            if (isSet(sequence)) {
+                return false;
+            }
+            set(sequence);
+            return true;
+        }
+
+        private boolean isReordered(int sequence) {
+            for (int i = 0; i < reorderedCount; i++) {
+                if (reorderedSequences[i] == sequence) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isSet(int sequence) {
+            int bit = sequence & (WINDOW_SIZE - 1);
+            return (received[bit >>> 6] & (1L << bit)) != 0;
+        }
+
+        private void set(int sequence) {
+            int bit = sequence & (WINDOW_SIZE - 1);
+            received[bit >>> 6] |= 1L << bit;
+        }
+
+        private void clear(int sequence) {
+            int bit = sequence & (WINDOW_SIZE - 1);
+            received[bit >>> 6] &= ~(1L << bit);
+        }
+    }
+}
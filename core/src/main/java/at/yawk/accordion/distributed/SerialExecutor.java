@@ -0,0 +1,174 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.distributed;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor that runs its tasks one at a time in submission order on a shared backing executor. Many serial executors
+ * can share a small, fixed thread pool while each of them keeps FIFO order.
+ *
+ * @author yawkat
+ */
+class SerialExecutor implements Executor {
+    /**
+     * Maximum number of tasks run in one go before the thread is given back to the pool so other serial executors get a
+     * turn.
+     */
+    private static final int BATCH_SIZE = 64;
+
+    /*
+     * Suspension states, see #suspend.
+     */
+    private static final int RUNNING = 0;
+    /**
+     * #suspend was called, the drain loop stops after the current task.
+     */
+    private static final int SUSPENDING = 1;
+    /**
+     * The drain loop stopped and waits for #resume.
+     */
+    private static final int SUSPENDED = 2;
+
+    private final Executor backing;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    /**
+     * Whether a drain task is submitted to the backing executor or running.
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicInteger state = new AtomicInteger(RUNNING);
+    /**
+     * Task that is run before the queued tasks once we are resumed, see #suspend.
+     */
+    private volatile Runnable retryTask;
+
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    SerialExecutor(Executor backing) {
+        this.backing = backing;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        int depth = queueDepth.incrementAndGet();
+        int max;
+        do {
+            max = maxQueueDepth.get();
+        } while (depth > max && !maxQueueDepth.compareAndSet(max, depth));
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                backing.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+                throw e;
+            }
+        }
+    }
+
+    private void drain() {
+        boolean suspended = false;
+        try {
+            suspended = runBatch();
+        } finally {
+            if (!suspended) {
+                scheduled.set(false);
+                // tasks added while we were finishing (or left over from the batch)
+                if (!tasks.isEmpty() || retryTask != null) {
+                    try {
+                        schedule();
+                    } catch (RejectedExecutionException e) {
+                        // backing executor shut down, the remaining tasks are dropped
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if we were suspended and must keep #scheduled set until #resume.
+     */
+    private boolean runBatch() {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            Runnable task = retryTask;
+            if (task != null) {
+                retryTask = null;
+            } else {
+                task = tasks.poll();
+                if (task == null) {
+                    break;
+                }
+                queueDepth.decrementAndGet();
+            }
+            task.run();
+            if (state.compareAndSet(SUSPENDING, SUSPENDED)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stop running tasks once the current task returns, without holding a thread of the backing executor, until
+     * #resume is called. The given task is then run before all queued tasks. Must be called from a task of this
+     * executor before it arranges for #resume to be called.
+     */
+    void suspend(Runnable retry) {
+        retryTask = retry;
+        state.set(SUSPENDING);
+    }
+
+    /**
+     * Undo #suspend from the same task if it turned out that we don't need to wait after all.
+     */
+    void cancelSuspend() {
+        retryTask = null;
+        state.set(RUNNING);
+    }
+
+    /**
+     * Continue running tasks after #suspend. May be called from any thread, also before the suspending task returned.
+     */
+    void resume() {
+        if (state.compareAndSet(SUSPENDING, RUNNING)) {
+            // the drain loop did not stop yet and simply carries on
+            return;
+        }
+        if (state.compareAndSet(SUSPENDED, RUNNING)) {
+            try {
+                backing.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                // backing executor shut down, nothing runs anymore
+            }
+        }
+    }
+
+    /**
+     * Number of tasks waiting to be run.
+     */
+    int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * Largest number of tasks that were waiting at the same time.
+     */
+    int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.distributed;
+
+import at.yawk.accordion.netty.Connection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inverted index from channel name to the connections that are subscribed to it (either themselves or through a node
+ * behind them). Lookups are a single map access returning a shared array; updates copy the array and are much rarer
+ * than lookups since subscriptions can only be added.
+ *
+ * @author yawkat
+ */
+class SubscriptionIndex {
+    private static final Connection[] NONE = new Connection[0];
+
+    /**
+     * Subscribed connections by channel. The arrays are never modified after they were put into this map.
+     */
+    private final Map<String, Connection[]> connectionsByChannel = new ConcurrentHashMap<>();
+
+    /**
+     * Get all connections subscribed to the given channel. The returned array must not be modified.
+     */
+    Connection[] get(String channel) {
+        return connectionsByChannel.getOrDefault(channel, NONE);
+    }
+
+    /**
+     * Mark the given connection as subscribed to the given channels.
+     */
+    synchronized void add(Connection connection, Collection<String> channels) {
+        for (String channel : channels) {
+            Connection[] old = get(channel);
+            if (contains(old, connection)) {
+                continue;
+            }
+            Connection[] updated = Arrays.copyOf(old, old.length + 1);
+            updated[old.length] = connection;
+            connectionsByChannel.put(channel, updated);
+        }
+    }
+
+    /**
+     * Remove the given connection from all channels.
+     */
+    synchronized void remove(Connection connection) {
+        connectionsByChannel.replaceAll((channel, connections) -> {
+            if (!contains(connections, connection)) {
+                return connections;
+            }
+            return Arrays.stream(connections).filter(other -> other != connection).toArray(Connection[]::new);
+        });
+    }
+
+    private static boolean contains(Connection[] connections, Connection connection) {
+        for (Connection other : connections) {
+            if (other == connection) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,492 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.distributed;
+
+import at.yawk.accordion.Log;
+import at.yawk.accordion.netty.Connection;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TIntLongMap;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TIntLongHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import io.netty.buffer.ByteBuf;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Learns the network topology, decides which neighbors a packet should be forwarded to in RoutingMode.SPANNING_TREE
+ * and provides the next hop towards a node for unicast packets.
+ * <p/>
+ * Nodes are identified by their packet ID origin (see PacketIdGenerator). On connect, both sides tell each other their
+ * ID (InternalProtocol#IDENTIFY). Each node floods a versioned advert of its neighbor IDs (InternalProtocol#TOPOLOGY)
+ * whenever its neighbors change, and sends all adverts it knows to new neighbors. From those adverts every node builds
+ * the same graph (links count only if both ends advertise them) and the same shortest-path tree for each origin:
+ * the parent of a node is its lowest-ID neighbor one hop closer to the origin. A node forwards a packet only to the
+ * neighbors whose parent it is in the tree of the packet's origin.
+ * <p/>
+ * Adverts also carry an opaque identity set through #setIdentity (LocalNode uses its encoded Node) so nodes can be
+ * looked up by it.
+ * <p/>
+ * While views of the topology may differ between nodes (for #FLOOD_GRACE_MILLIS after a local change), for unknown
+ * origins, for origins whose tree we are not part of and for neighbors that did not identify yet, packets are flooded
+ * instead; the duplicates are dropped by the receivers as before.
+ * <p/>
+ * Adverts of nodes that stay unreachable from us for #PRUNE_AFTER_MILLIS (for example the old ID of a restarted node)
+ * are forgotten at the next topology change. Should such a node come back, its neighbors send us its advert again.
+ *
+ * @author yawkat
+ */
+class TopologyManager {
+    /**
+     * Time after a topology change during which we flood so packets aren't lost while nodes disagree on the trees.
+     */
+    private static final long FLOOD_GRACE_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    /**
+     * Time a node has to be unreachable before we forget its advert. Longer than FLOOD_GRACE_MILLIS so links that are
+     * only advertised by one end yet don't make us forget the nodes behind them.
+     */
+    static final long PRUNE_AFTER_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    /**
+     * Marker in #childrenCache for origins whose tree we are not part of.
+     */
+    static final int[] NOT_IN_TREE = new int[0];
+    /**
+     * Connection property that contains the ID of the node on the other side.
+     */
+    private static final String PROPERTY_NODE_ID = "acc.nodeId";
+
+    private final ConnectionManager connectionManager;
+    /**
+     * Our own node ID.
+     */
+    private final int self;
+
+    /**
+     * Identified neighbors by node ID.
+     */
+    private final Map<Integer, Connection> neighborConnections = new ConcurrentHashMap<>();
+    /**
+     * Latest known advert of every node by node ID, including our own.
+     */
+    private final TIntObjectMap<Advert> adverts = new TIntObjectHashMap<>();
+    /**
+     * Version of our own advert.
+     */
+    private long ownVersion = 0;
+    /**
+     * Our own identity bytes.
+     */
+    private byte[] ownIdentity = new byte[0];
+    /**
+     * Time since which each known node is unreachable from us, see #pruneUnreachable.
+     */
+    private final TIntLongMap unreachableSince = new TIntLongHashMap();
+    /**
+     * Time of the last change of #adverts.
+     */
+    private volatile long lastChange;
+    /**
+     * Our children in the tree of each origin, sorted. NOT_IN_TREE if we are not in the tree (the origin isn't
+     * reachable from us), cleared on every topology change.
+     */
+    private final Map<Integer, int[]> childrenCache = new ConcurrentHashMap<>();
+    /**
+     * First hop on the shortest path from us to each reachable node, null if it has to be recomputed.
+     */
+    private volatile TIntIntMap routingTable = null;
+
+    TopologyManager(ConnectionManager connectionManager, int self) {
+        this.connectionManager = connectionManager;
+        this.self = self;
+
+        adverts.put(self, new Advert(ownVersion, ownIdentity, new int[0]));
+        lastChange = System.currentTimeMillis();
+
+        connectionManager.setInternalHandler(InternalProtocol.IDENTIFY,
+                                             (message, connection) -> onIdentified(connection, message.readInt()));
+        connectionManager.setInternalHandler(InternalProtocol.TOPOLOGY, (message, connection) -> {
+            int origin = message.readInt();
+            Advert advert = Advert.read(message);
+            if (handleAdvert(origin, advert)) {
+                // new to us, pass it on
+                sendAdvert(origin, advert, connectionManager.getConnections().stream()
+                        .filter(other -> other != connection));
+            }
+        });
+    }
+
+    /**
+     * Called when a new connection is added.
+     */
+    void onConnected(Connection connection) {
+        ByteBuf identify = connectionManager.alloc().buffer(4);
+        identify.writeInt(self);
+        connectionManager.sendPacket(InternalProtocol.IDENTIFY, Stream.of(connection), identify);
+
+        // tell them what we know
+        TIntObjectMap<Advert> known;
+        synchronized (this) {
+            known = new TIntObjectHashMap<>(adverts);
+        }
+        known.forEachEntry((origin, advert) -> {
+            sendAdvert(origin, advert, Stream.of(connection));
+            return true;
+        });
+    }
+
+    /**
+     * Called when the node on the other side of a connection told us its ID.
+     */
+    void onIdentified(Connection connection, int id) {
+        connection.properties().put(PROPERTY_NODE_ID, id);
+        neighborConnections.put(id, connection);
+        Log.debug(connectionManager.getLogger(), () -> connection + " identified as " + Integer.toHexString(id));
+        updateOwnAdvert();
+    }
+
+    /**
+     * Called when a connection is lost.
+     */
+    void onDisconnected(Connection connection) {
+        Integer id = (Integer) connection.properties().remove(PROPERTY_NODE_ID);
+        if (id != null) {
+            if (neighborConnections.remove(id, connection)) {
+                // we might have another connection to the same node
+                connectionManager.getConnections().stream()
+                        .filter(other -> id.equals(other.properties().get(PROPERTY_NODE_ID)))
+                        .findAny()
+                        .ifPresent(other -> neighborConnections.putIfAbsent(id, other));
+            }
+            updateOwnAdvert();
+        }
+    }
+
+    /**
+     * Whether a packet with the given ID should be forwarded to the given connection.
+     */
+    boolean shouldForward(long packetId, Connection target) {
+        if (System.currentTimeMillis() - lastChange < FLOOD_GRACE_MILLIS) {
+            // views may differ, flood
+            return true;
+        }
+        Integer targetId = (Integer) target.properties().get(PROPERTY_NODE_ID);
+        if (targetId == null) {
+            // don't know who that is yet, flood
+            return true;
+        }
+        int origin = PacketIdGenerator.origin(packetId);
+        int[] children = childrenCache.get(origin);
+        if (children == null) {
+            children = computeChildren(origin);
+        }
+        return children == null || children == NOT_IN_TREE || Arrays.binarySearch(children, targetId) >= 0;
+    }
+
+    /**
+     * Recompute our own advert from the currently identified connections and flood it if it changed.
+     */
+    private void updateOwnAdvert() {
+        updateOwnAdvert(neighborConnections.keySet().stream().mapToInt(Integer::intValue).sorted().toArray());
+    }
+
+    /**
+     * Set our neighbors to the given sorted IDs and flood our advert if it changed.
+     */
+    void updateOwnAdvert(int[] neighbors) {
+        Advert advert;
+        synchronized (this) {
+            if (Arrays.equals(neighbors, adverts.get(self).neighbors)) {
+                return;
+            }
+            advert = new Advert(++ownVersion, ownIdentity, neighbors);
+            adverts.put(self, advert);
+            topologyChanged();
+        }
+        sendAdvert(self, advert, connectionManager.getConnections().stream());
+    }
+
+    /**
+     * Set the identity bytes other nodes can find us by. Maximum length 0xff bytes.
+     */
+    void setIdentity(byte[] identity) {
+        Advert advert;
+        synchronized (this) {
+            ownIdentity = identity.clone();
+            advert = new Advert(++ownVersion, ownIdentity, adverts.get(self).neighbors);
+            adverts.put(self, advert);
+        }
+        sendAdvert(self, advert, connectionManager.getConnections().stream());
+    }
+
+    /**
+     * Get our own node ID.
+     */
+    int getSelf() {
+        return self;
+    }
+
+    /**
+     * Find the ID of the reachable node with the given identity. Nodes we can't reach, like the old ID of a restarted
+     * node whose advert was not pruned yet, are skipped.
+     */
+    synchronized OptionalInt getNodeId(byte[] identity) {
+        TIntIntMap routingTable = getRoutingTable();
+        for (int node : adverts.keys()) {
+            if ((node == self || routingTable.containsKey(node)) &&
+                Arrays.equals(adverts.get(node).identity, identity)) {
+                return OptionalInt.of(node);
+            }
+        }
+        return OptionalInt.empty();
+    }
+
+    /**
+     * Get the connection that is the first hop on the shortest path to the given node.
+     */
+    Optional<Connection> getNextHop(int destination) {
+        OptionalInt neighbor = getFirstHop(destination);
+        if (!neighbor.isPresent()) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(neighborConnections.get(neighbor.getAsInt()));
+    }
+
+    /**
+     * Get the ID of the neighbor that is the first hop on the shortest path to the given node. Empty if the node is
+     * unreachable or ourselves.
+     */
+    OptionalInt getFirstHop(int destination) {
+        TIntIntMap routingTable = this.routingTable;
+        if (routingTable == null) {
+            synchronized (this) {
+                routingTable = getRoutingTable();
+            }
+        }
+        if (!routingTable.containsKey(destination)) {
+            return OptionalInt.empty();
+        }
+        return OptionalInt.of(routingTable.get(destination));
+    }
+
+    /**
+     * Get (and compute if necessary) the first hop to every reachable node. Must hold the lock.
+     */
+    private TIntIntMap getRoutingTable() {
+        TIntIntMap routingTable = this.routingTable;
+        if (routingTable == null) {
+            routingTable = new TIntIntHashMap();
+            Deque<Integer> queue = new ArrayDeque<>();
+            for (int neighbor : linksOf(self)) {
+                routingTable.put(neighbor, neighbor);
+                queue.add(neighbor);
+            }
+            while (!queue.isEmpty()) {
+                int node = queue.poll();
+                int firstHop = routingTable.get(node);
+                for (int neighbor : linksOf(node)) {
+                    if (neighbor != self && !routingTable.containsKey(neighbor)) {
+                        routingTable.put(neighbor, firstHop);
+                        queue.add(neighbor);
+                    }
+                }
+            }
+            this.routingTable = routingTable;
+        }
+        return routingTable;
+    }
+
+    /**
+     * Store the given advert if it is newer than the one we know.
+     *
+     * @return whether the advert was new.
+     */
+    synchronized boolean handleAdvert(int origin, Advert advert) {
+        if (origin == self) {
+            // only we make our own adverts
+            return false;
+        }
+        Advert known = adverts.get(origin);
+        if (known != null && known.version >= advert.version) {
+            return false;
+        }
+        adverts.put(origin, advert);
+        topologyChanged();
+        return true;
+    }
+
+    /**
+     * Must hold the lock.
+     */
+    private void topologyChanged() {
+        long now = System.currentTimeMillis();
+        lastChange = now;
+        childrenCache.clear();
+        routingTable = null;
+        pruneUnreachable(now);
+    }
+
+    /**
+     * Forget the adverts of nodes that have been unreachable from us for PRUNE_AFTER_MILLIS and start the clock for
+     * nodes that just became unreachable. Must hold the lock.
+     */
+    void pruneUnreachable(long now) {
+        TIntIntMap routingTable = getRoutingTable();
+        boolean pruned = false;
+        for (int node : adverts.keys()) {
+            if (node == self || routingTable.containsKey(node)) {
+                unreachableSince.remove(node);
+            } else if (!unreachableSince.containsKey(node)) {
+                unreachableSince.put(node, now);
+            } else if (now - unreachableSince.get(node) >= PRUNE_AFTER_MILLIS) {
+                Log.debug(connectionManager.getLogger(),
+                          () -> "Forgetting unreachable node " + Integer.toHexString(node));
+                adverts.remove(node);
+                unreachableSince.remove(node);
+                pruned = true;
+            }
+        }
+        if (pruned) {
+            // links between reachable nodes are unaffected, only the trees of the forgotten origins
+            childrenCache.clear();
+        }
+    }
+
+    private void sendAdvert(int origin, Advert advert, Stream<Connection> targets) {
+        ByteBuf message = connectionManager.alloc().buffer(4 + 8 + 1 + advert.identity.length +
+                                                           2 + 4 * advert.neighbors.length);
+        message.writeInt(origin);
+        advert.write(message);
+        connectionManager.sendPacket(InternalProtocol.TOPOLOGY, targets, message);
+    }
+
+    /**
+     * Compute (and cache) our children in the shortest-path tree rooted at the given origin.
+     *
+     * @return the sorted IDs of our children, NOT_IN_TREE if we are not in the tree or null if the origin is unknown.
+     */
+    synchronized int[] computeChildren(int origin) {
+        int[] cached = childrenCache.get(origin);
+        if (cached != null) {
+            return cached;
+        }
+        if (!adverts.containsKey(origin)) {
+            return null;
+        }
+
+        // breadth-first search over links advertised by both ends
+        TIntIntMap depths = new TIntIntHashMap();
+        depths.put(origin, 0);
+        Deque<Integer> queue = new ArrayDeque<>();
+        queue.add(origin);
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            int depth = depths.get(node);
+            for (int neighbor : linksOf(node)) {
+                if (!depths.containsKey(neighbor)) {
+                    depths.put(neighbor, depth + 1);
+                    queue.add(neighbor);
+                }
+            }
+        }
+
+        if (!depths.containsKey(self)) {
+            childrenCache.put(origin, NOT_IN_TREE);
+            return NOT_IN_TREE;
+        }
+        TIntArrayList children = new TIntArrayList();
+        int ourDepth = depths.get(self);
+        for (int neighbor : linksOf(self)) {
+            if (depths.get(neighbor) == ourDepth + 1 && parentOf(neighbor, depths) == self) {
+                children.add(neighbor);
+            }
+        }
+        int[] result = children.toArray();
+        Arrays.sort(result);
+        childrenCache.put(origin, result);
+        return result;
+    }
+
+    /**
+     * The parent of the given node in a tree with the given depths: its lowest-ID neighbor one hop closer to the
+     * root.
+     */
+    private int parentOf(int node, TIntIntMap depths) {
+        int parentDepth = depths.get(node) - 1;
+        int parent = 0;
+        boolean found = false;
+        for (int neighbor : linksOf(node)) {
+            if (depths.containsKey(neighbor) && depths.get(neighbor) == parentDepth && (!found || neighbor < parent)) {
+                parent = neighbor;
+                found = true;
+            }
+        }
+        return parent;
+    }
+
+    /**
+     * Neighbors of the given node that advertise the link as well.
+     */
+    private int[] linksOf(int node) {
+        Advert advert = adverts.get(node);
+        if (advert == null) {
+            return new int[0];
+        }
+        return Arrays.stream(advert.neighbors)
+                .filter(neighbor -> {
+                    Advert other = adverts.get(neighbor);
+                    return other != null && Arrays.binarySearch(other.neighbors, node) >= 0;
+                })
+                .toArray();
+    }
+
+    /**
+     * The identity and neighbor list of a node at a given version.
+     */
+    static class Advert {
+        private final long version;
+        private final byte[] identity;
+        /**
+         * Sorted neighbor IDs.
+         */
+        private final int[] neighbors;
+
+        Advert(long version, byte[] identity, int[] neighbors) {
+            this.version = version;
+            this.identity = identity;
+            this.neighbors = neighbors;
+        }
+
+        static Advert read(ByteBuf from) {
+            long version = from.readLong();
+            byte[] identity = InternalProtocol.readByteArray(from);
+            int[] neighbors = new int[from.readUnsignedShort()];
+            for (int i = 0; i < neighbors.length; i++) {
+                neighbors[i] = from.readInt();
+            }
+            Arrays.sort(neighbors);
+            return new Advert(version, identity, neighbors);
+        }
+
+        void write(ByteBuf to) {
+            to.writeLong(version);
+            InternalProtocol.writeByteArray(to, identity);
+            to.writeShort(neighbors.length);
+            for (int neighbor : neighbors) {
+                to.writeInt(neighbor);
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.netty;
+
+import java.util.List;
+import java.util.function.Consumer;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Server that listens on multiple addresses at once by delegating to one server per address.
+ *
+ * @author yawkat
+ */
+@RequiredArgsConstructor
+class CompositeServer implements Server {
+    private final List<Server> servers;
+
+    @Override
+    public void setConnectionHandler(Consumer<Connection> handler) {
+        servers.forEach(server -> server.setConnectionHandler(handler));
+    }
+
+    @Override
+    public void bind() {
+        servers.forEach(Server::bind);
+    }
+
+    @Override
+    public void unbind() {
+        servers.forEach(Server::unbind);
+    }
+}
@@ -18,17 +18,37 @@ import java.util.function.Consumer;
  */
 public interface Connection {
     /**
-     * Send the given ByteBuf through this connection. The ByteBuf should not be used again.
+     * Send the given ByteBuf through this connection. Ownership of the ByteBuf is transferred to this connection: it
+     * is released once it has been written and should not be used again by the caller.
      */
     void send(ByteBuf data);
 
+    /**
+     * Send the given ByteBuf with the given priority, see #send(ByteBuf). Connections without priority support send
+     * all messages in order.
+     */
+    default void send(ByteBuf data, Priority priority) {
+        send(data);
+    }
+
+    /**
+     * Send the given ByteBuf like #send(ByteBuf, Priority) if that does not block the calling thread. Otherwise (see
+     * OverflowPolicy.BLOCK) ownership stays with the caller, false is returned and the given callback is run once the
+     * connection accepts messages again. Connections that never block always send and return true.
+     */
+    default boolean trySend(ByteBuf data, Priority priority, Runnable onWritable) {
+        send(data, priority);
+        return true;
+    }
+
     /**
      * Disconnect from the remote.
      */
     void disconnect();
 
     /**
-     * Set the message handler that will be called when a message arrives through this connection.
+     * Set the message handler that will be called when a message arrives through this connection. The handler owns the
+     * received ByteBuf and must release it when done.
      */
     void setMessageHandler(Consumer<ByteBuf> listener);
 
@@ -42,6 +62,14 @@ public interface Connection {
      */
     void setDisconnectHandler(Runnable listener);
 
+    /**
+     * Get traffic statistics of this connection. Connections that do not collect statistics return a statistics
+     * object that always stays empty.
+     */
+    default ConnectionStatistics getStatistics() {
+        return ConnectionStatistics.NONE;
+    }
+
     /**
      * Get a mutable, thread-safe map where applications can store connection-specific data.
      */
@@ -0,0 +1,129 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.netty;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters describing the traffic of a single connection. All methods are thread-safe.
+ *
+ * @author yawkat
+ */
+public class ConnectionStatistics {
+    /**
+     * Statistics of connections that do not collect any.
+     */
+    static final ConnectionStatistics NONE = new ConnectionStatistics();
+
+    /**
+     * Number of buckets in the flush size histogram. Bucket i counts flushes that carried between 2^i and 2^(i+1)-1
+     * messages, the last bucket counts everything larger.
+     */
+    private static final int FLUSH_HISTOGRAM_BUCKETS = 16;
+
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong flushedMessageCount = new AtomicLong();
+    private final AtomicLong maxMessagesPerFlush = new AtomicLong();
+    private final AtomicLongArray flushSizeHistogram = new AtomicLongArray(FLUSH_HISTOGRAM_BUCKETS);
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicLong droppedMessageCount = new AtomicLong();
+
+    ConnectionStatistics() {}
+
+    /**
+     * Record a flush that carried the given number of messages.
+     */
+    void recordFlush(int messages) {
+        flushCount.incrementAndGet();
+        flushedMessageCount.addAndGet(messages);
+        long max;
+        do {
+            max = maxMessagesPerFlush.get();
+        } while (messages > max && !maxMessagesPerFlush.compareAndSet(max, messages));
+        int bucket = Math.min(31 - Integer.numberOfLeadingZeros(messages), FLUSH_HISTOGRAM_BUCKETS - 1);
+        flushSizeHistogram.incrementAndGet(bucket);
+    }
+
+    /**
+     * Add to (or subtract from) the number of bytes that were sent but not written to the socket yet.
+     */
+    void addPendingBytes(long delta) {
+        pendingBytes.addAndGet(delta);
+    }
+
+    /**
+     * Record a message that was dropped by the overflow policy.
+     */
+    void recordDropped() {
+        droppedMessageCount.incrementAndGet();
+    }
+
+    /**
+     * Number of bytes that were sent through this connection but not written to the socket yet.
+     */
+    public long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    /**
+     * Number of messages that were dropped because the remote did not read fast enough.
+     */
+    public long getDroppedMessageCount() {
+        return droppedMessageCount.get();
+    }
+
+    /**
+     * Number of flushes performed on this connection.
+     */
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    /**
+     * Number of messages written through all flushes on this connection.
+     */
+    public long getFlushedMessageCount() {
+        return flushedMessageCount.get();
+    }
+
+    /**
+     * Largest number of messages carried by a single flush.
+     */
+    public long getMaxMessagesPerFlush() {
+        return maxMessagesPerFlush.get();
+    }
+
+    /**
+     * Average number of messages carried by a flush.
+     */
+    public double getAverageMessagesPerFlush() {
+        long flushes = getFlushCount();
+        return flushes == 0 ? 0 : (double) getFlushedMessageCount() / flushes;
+    }
+
+    /**
+     * Histogram of messages per flush. Index i contains the number of flushes that carried between 2^i and
+     * 2^(i+1)-1 messages, the last index also contains all larger flushes.
+     */
+    public long[] getFlushSizeHistogram() {
+        long[] histogram = new long[FLUSH_HISTOGRAM_BUCKETS];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = flushSizeHistogram.get(i);
+        }
+        return histogram;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionStatistics[flushes=" + getFlushCount() +
+               ", messages=" + getFlushedMessageCount() +
+               ", maxPerFlush=" + getMaxMessagesPerFlush() +
+               ", pendingBytes=" + getPendingBytes() +
+               ", dropped=" + getDroppedMessageCount() + "]";
+    }
+}
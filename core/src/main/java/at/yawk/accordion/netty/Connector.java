@@ -7,7 +7,7 @@
 package at.yawk.accordion.netty;
 
 import java.net.SocketAddress;
-import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Interface for a networking system that allows connection to other servers and listening to a port.
@@ -16,12 +16,19 @@ import java.util.Optional;
  */
 public interface Connector {
     /**
-     * Connect to the given address. Returns an empty optional on failure, the connection otherwise.
+     * Connect to the given address without blocking. The returned future completes with the connection once it is
+     * established or exceptionally if the attempt failed or timed out.
      */
-    Optional<Connection> connect(SocketAddress address);
+    CompletableFuture<Connection> connect(SocketAddress address);
 
     /**
      * Create a new server on the given address. This server is not started: call Server#bind to start it.
      */
     Server listen(SocketAddress inf);
+
+    /**
+     * Release all resources (threads) held by this connector. Connections and servers created by this connector can
+     * not be used anymore after this call.
+     */
+    void shutdown();
 }
@@ -0,0 +1,77 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.netty;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+import java.io.File;
+import java.util.function.Function;
+
+/**
+ * NettyServer bound to a unix domain socket. Removes stale socket files on bind (left over from a crashed process) and
+ * our own socket file on unbind so clients only find sockets that are actually served. Binding fails if another
+ * server still accepts connections on the socket.
+ *
+ * @author yawkat
+ */
+class DomainSocketServer extends NettyServer {
+    private final DomainSocketAddress address;
+    private final File socketFile;
+    /**
+     * Event loop group used to check whether an existing socket is still served.
+     */
+    private final EventLoopGroup probeGroup;
+
+    DomainSocketServer(ServerBootstrap bootstrap,
+                       DomainSocketAddress address,
+                       Function<Channel, NettyConnection> connectionFactory) {
+        super(bootstrap, address, connectionFactory);
+        this.address = address;
+        this.socketFile = new File(address.path());
+        this.probeGroup = bootstrap.childGroup();
+    }
+
+    @Override
+    public void bind() {
+        if (socketFile.exists()) {
+            if (isServed()) {
+                throw new IllegalStateException("Domain socket " + socketFile + " is already in use");
+            }
+            socketFile.delete();
+        }
+        super.bind();
+    }
+
+    /**
+     * Whether another server accepts connections on our socket.
+     */
+    private boolean isServed() {
+        ChannelFuture probe = new Bootstrap()
+                .group(probeGroup)
+                .channel(EpollDomainSocketChannel.class)
+                .handler(new ChannelInboundHandlerAdapter())
+                .connect(address)
+                .awaitUninterruptibly();
+        if (probe.isSuccess()) {
+            NettyConnection.close(probe.channel());
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void unbind() {
+        super.unbind();
+        socketFile.delete();
+    }
+}
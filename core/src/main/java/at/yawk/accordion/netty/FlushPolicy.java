@@ -0,0 +1,70 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.netty;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+/**
+ * Defines when messages written to a connection are flushed to the socket.
+ *
+ * @author yawkat
+ */
+@Getter
+@ToString
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+public class FlushPolicy {
+    /**
+     * Flush every message as soon as it is written. This is the default.
+     */
+    public static final FlushPolicy IMMEDIATE = new FlushPolicy(1, 0, 0);
+
+    /**
+     * Maximum number of messages that may be written before a flush is forced.
+     */
+    private final int maxMessages;
+    /**
+     * Maximum number of bytes that may be written before a flush is forced.
+     */
+    private final int maxBytes;
+    /**
+     * Time in microseconds after the first unflushed write until a flush is performed. 0 flushes at the end of the
+     * current event loop iteration.
+     */
+    private final long maxDelayMicros;
+
+    /**
+     * Consolidate writes and flush them together once per event loop iteration, or earlier if one of the given limits
+     * is reached.
+     */
+    public static FlushPolicy batched(int maxMessages, int maxBytes) {
+        return batched(maxMessages, maxBytes, 0);
+    }
+
+    /**
+     * Consolidate writes and flush them together after the given delay, or earlier if one of the given limits is
+     * reached.
+     */
+    public static FlushPolicy batched(int maxMessages, int maxBytes, long maxDelayMicros) {
+        if (maxMessages < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("Flush limits must be positive");
+        }
+        if (maxDelayMicros < 0) {
+            throw new IllegalArgumentException("Negative flush delay");
+        }
+        return new FlushPolicy(maxMessages, maxBytes, maxDelayMicros);
+    }
+
+    /**
+     * Whether every write should be flushed immediately.
+     */
+    public boolean isImmediate() {
+        return maxMessages == 1;
+    }
+}
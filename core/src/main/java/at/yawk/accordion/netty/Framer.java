@@ -6,52 +6,180 @@
 
 package at.yawk.accordion.netty;
 
+import at.yawk.accordion.codec.VarInt;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.DefaultByteBufHolder;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ByteToMessageCodec;
-import java.io.IOException;
+import io.netty.channel.CombinedChannelDuplexHandler;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.handler.codec.TooLongFrameException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Netty codec that adds a length header on the sender side and splits the input accordingly in the receiver.
+ * <p/>
+ * Each frame starts with a varint header <code>(length &lt;&lt; 2) | type</code>. Complete messages (type 0) are
+ * followed directly by their content. Messages larger than #MAXIMUM_FRAME_LENGTH are split into fragments (type 1,
+ * type 2 for the last fragment of a message) that carry an additional varint stream ID after the header so fragments
+ * of different messages can be interleaved with each other and with complete messages.
  *
  * @author yawkat
  */
-class Framer extends ByteToMessageCodec<ByteBuf> {
-    private static final int MAXIMUM_MESSAGE_LENGTH = 0xFFFF;
-
-    @Override
-    protected void encode(ChannelHandlerContext ctx, ByteBuf msg, ByteBuf out) throws Exception {
-        // length of this message
-        int length = msg.readableBytes();
-        if (length > MAXIMUM_MESSAGE_LENGTH) {
-            throw new IOException("Message too long: " + length + " bytes");
+class Framer extends CombinedChannelDuplexHandler<Framer.Decoder, Framer.Encoder> {
+    /**
+     * Maximum content length of a single frame. Larger messages are fragmented.
+     */
+    static final int MAXIMUM_FRAME_LENGTH = 16 * 1024;
+    /**
+     * Maximum length of a reassembled message.
+     */
+    static final int MAXIMUM_MESSAGE_LENGTH = 64 * 1024 * 1024;
+    /**
+     * Maximum number of messages that may be reassembled at the same time on one connection.
+     */
+    private static final int MAXIMUM_PARTIAL_MESSAGES = 64;
+
+    private static final int TYPE_COMPLETE = 0;
+    private static final int TYPE_FRAGMENT = 1;
+    private static final int TYPE_LAST_FRAGMENT = 2;
+
+    Framer() {
+        super(new Decoder(), new Encoder());
+    }
+
+    /**
+     * One part of a fragmented message.
+     */
+    static class Fragment extends DefaultByteBufHolder {
+        private final int streamId;
+        private final boolean last;
+
+        Fragment(ByteBuf content, int streamId, boolean last) {
+            super(content);
+            this.streamId = streamId;
+            this.last = last;
         }
-        out.ensureWritable(2 + length);
+    }
+
+    static class Encoder extends MessageToMessageEncoder<Object> {
+        @Override
+        public boolean acceptOutboundMessage(Object msg) throws Exception {
+            return msg instanceof ByteBuf || msg instanceof Fragment;
+        }
+
+        @Override
+        protected void encode(ChannelHandlerContext ctx, Object msg, List<Object> out) throws Exception {
+            ByteBuf content;
+            ByteBuf header = ctx.alloc().buffer(2 * VarInt.MAX_LENGTH);
+            if (msg instanceof Fragment) {
+                Fragment fragment = (Fragment) msg;
+                content = fragment.content();
+                VarInt.write(header, (content.readableBytes() << 2) |
+                                     (fragment.last ? TYPE_LAST_FRAGMENT : TYPE_FRAGMENT));
+                VarInt.write(header, fragment.streamId);
+            } else {
+                content = (ByteBuf) msg;
+                if (content.readableBytes() > MAXIMUM_FRAME_LENGTH) {
+                    header.release();
+                    throw new TooLongFrameException("Message too long: " + content.readableBytes() + " bytes");
+                }
+                VarInt.write(header, (content.readableBytes() << 2) | TYPE_COMPLETE);
+            }
 
-        // write
-        out.writeShort(length);
-        msg.readBytes(out, length);
+            // write the header as its own buffer and the content as-is so shared messages are never copied
+            out.add(header);
+            out.add(content.retain());
+        }
     }
 
-    @Override
-    protected void decode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out) throws Exception {
-        if (msg.readableBytes() < 2) {
-            // no (full) length header received yet, wait
-            return;
+    static class Decoder extends ByteToMessageDecoder {
+        /**
+         * Messages that are currently being reassembled by stream ID.
+         */
+        private final Map<Integer, ByteBuf> partialMessages = new HashMap<>();
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out) throws Exception {
+            // mark so we can reset here if the frame isn't complete yet
+            msg.markReaderIndex();
+            if (!VarInt.isReadable(msg)) {
+                // no (full) header received yet, wait
+                return;
+            }
+            int header = VarInt.read(msg);
+            int type = header & 3;
+            int length = header >>> 2;
+            if (length > MAXIMUM_FRAME_LENGTH) {
+                throw new TooLongFrameException("Frame too long: " + length + " bytes");
+            }
+
+            int streamId = 0;
+            if (type != TYPE_COMPLETE) {
+                if (!VarInt.isReadable(msg)) {
+                    msg.resetReaderIndex();
+                    return;
+                }
+                streamId = VarInt.read(msg);
+            }
+
+            if (length > msg.readableBytes()) {
+                // header received but frame not yet complete, wait
+                msg.resetReaderIndex();
+                return;
+            }
+
+            switch (type) {
+                case TYPE_COMPLETE:
+                    // message complete, queue for handling. Slice instead of copying, the retained slice keeps the
+                    // cumulation buffer alive until the message is released.
+                    out.add(msg.readSlice(length).retain());
+                    break;
+                case TYPE_FRAGMENT:
+                case TYPE_LAST_FRAGMENT:
+                    ByteBuf partial = partialMessages.get(streamId);
+                    if (partial == null) {
+                        if (partialMessages.size() >= MAXIMUM_PARTIAL_MESSAGES) {
+                            throw new CorruptedFrameException("Too many interleaved messages");
+                        }
+                        partial = ctx.alloc().buffer(type == TYPE_LAST_FRAGMENT ? length : 2 * MAXIMUM_FRAME_LENGTH);
+                        partialMessages.put(streamId, partial);
+                    }
+                    if (partial.readableBytes() + length > MAXIMUM_MESSAGE_LENGTH) {
+                        partialMessages.remove(streamId).release();
+                        throw new TooLongFrameException("Message too long: more than " + MAXIMUM_MESSAGE_LENGTH +
+                                                        " bytes");
+                    }
+                    partial.writeBytes(msg, length);
+                    if (type == TYPE_LAST_FRAGMENT) {
+                        // reassembly done
+                        partialMessages.remove(streamId);
+                        out.add(partial);
+                    }
+                    break;
+                default:
+                    throw new CorruptedFrameException("Unknown frame type " + type);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            releasePartialMessages();
+            super.channelInactive(ctx);
         }
 
-        // mark so we can reset here if the message isn't complete yet
-        msg.markReaderIndex();
-        int messageLength = msg.readUnsignedShort();
-        if (messageLength > msg.readableBytes()) {
-            // length header received but message not yet complete, wait
-            msg.resetReaderIndex();
-            return;
+        @Override
+        protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception {
+            releasePartialMessages();
+            super.handlerRemoved0(ctx);
         }
 
-        // message complete, queue for handling
-        ByteBuf message = msg.readBytes(messageLength);
-        out.add(message);
+        private void releasePartialMessages() {
+            partialMessages.values().forEach(ByteBuf::release);
+            partialMessages.clear();
+        }
     }
 }
@@ -8,12 +8,20 @@ package at.yawk.accordion.netty;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.*;
+import io.netty.handler.codec.TooLongFrameException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.Setter;
 import lombok.ToString;
@@ -23,11 +31,68 @@ import lombok.ToString;
  *
  * @author yawkat
  */
-@ToString
-@EqualsAndHashCode
+@ToString(of = "channel")
+@EqualsAndHashCode(of = "channel")
 @RequiredArgsConstructor
 class NettyConnection implements Connection {
     private final Channel channel;
+    /**
+     * When to flush written messages.
+     */
+    private final FlushPolicy flushPolicy;
+    /**
+     * What to do with new messages while the channel is not writable.
+     */
+    private final OverflowPolicy overflowPolicy;
+    /**
+     * Maximum size of the backlog in bytes with OverflowPolicy.DROP_OLDEST. Other policies hold messages back before
+     * they reach the backlog instead.
+     */
+    private final int maxBacklogBytes;
+
+    @Getter private final ConnectionStatistics statistics = new ConnectionStatistics();
+
+    /**
+     * Monitor that is notified when the channel becomes writable or inactive, used for OverflowPolicy.BLOCK.
+     */
+    private final Object writabilityLock = new Object();
+    /**
+     * Callbacks of #trySend that are run once when the channel becomes writable or inactive.
+     */
+    private final Queue<Runnable> writabilityListeners = new ConcurrentLinkedQueue<>();
+
+    /*
+     * Outbound state, only accessed from the event loop.
+     */
+
+    /**
+     * Messages written since the last flush.
+     */
+    private int unflushedMessages = 0;
+    /**
+     * Bytes written since the last flush.
+     */
+    private int unflushedBytes = 0;
+    /**
+     * Whether a flush task is already scheduled on the event loop.
+     */
+    private boolean flushScheduled = false;
+    /**
+     * Outbound queues by Priority ordinal.
+     */
+    private final Lane[] lanes = Lane.createLanes();
+    /**
+     * Total size of the messages in all Lane#backlog queues.
+     */
+    private long backlogBytes = 0;
+    /**
+     * Stream ID of the next fragmented message.
+     */
+    private int nextStreamId = 0;
+    /**
+     * Whether #pumpStreams is already scheduled on the event loop.
+     */
+    private boolean pumpScheduled = false;
 
     private final List<ByteBuf> messageQueue = new ArrayList<>();
 
@@ -52,6 +117,26 @@ class NettyConnection implements Connection {
                     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
                         messageHandler.accept((ByteBuf) msg);
                     }
+
+                    @Override
+                    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+                        if (channel.isWritable()) {
+                            drainBacklog();
+                            if (hasStreams()) {
+                                schedulePump();
+                            }
+                            wakeBlockedSenders();
+                        }
+                        super.channelWritabilityChanged(ctx);
+                    }
+
+                    @Override
+                    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+                        discardBacklog();
+                        discardStreams();
+                        wakeBlockedSenders();
+                        super.channelInactive(ctx);
+                    }
                 })
                 .addLast(new ChannelDuplexHandler() {
                     @Override
@@ -68,7 +153,306 @@ class NettyConnection implements Connection {
 
     @Override
     public void send(ByteBuf data) {
-        channel.writeAndFlush(data);
+        send(data, Priority.NORMAL);
+    }
+
+    @Override
+    public void send(ByteBuf data, Priority priority) {
+        if (overflowPolicy == OverflowPolicy.BLOCK && isBackedUp(priority)) {
+            awaitWritable();
+        }
+        enqueue(data, priority);
+    }
+
+    @Override
+    public boolean trySend(ByteBuf data, Priority priority, Runnable onWritable) {
+        if (overflowPolicy == OverflowPolicy.BLOCK && isBackedUp(priority)) {
+            writabilityListeners.add(onWritable);
+            if (!isBackedUp(priority)) {
+                // drained while we were adding the listener, the event loop might have missed it
+                wakeBlockedSenders();
+            }
+            return false;
+        }
+        enqueue(data, priority);
+        return true;
+    }
+
+    /**
+     * Whether messages of the given priority are subject to our OverflowPolicy right now because the outbound buffer
+     * is above the high water mark. Control messages are small and must not wait behind a slow peer, they never are.
+     */
+    private boolean isBackedUp(Priority priority) {
+        return priority != Priority.CONTROL && !channel.isWritable() && channel.isActive();
+    }
+
+    /**
+     * Apply the non-blocking overflow policies and pass the message to the event loop.
+     */
+    private void enqueue(ByteBuf data, Priority priority) {
+        if (isBackedUp(priority)) {
+            switch (overflowPolicy) {
+                case BLOCK:
+                    // waited as long as we could
+                    break;
+                case DROP_OLDEST:
+                    // queued in the backlog by #write
+                    break;
+                case DROP_NEWEST:
+                    statistics.recordDropped();
+                    data.release();
+                    return;
+                case DISCONNECT:
+                    statistics.recordDropped();
+                    data.release();
+                    disconnect();
+                    return;
+            }
+        }
+
+        int length = data.readableBytes();
+        statistics.addPendingBytes(length);
+        EventLoop eventLoop = channel.eventLoop();
+        if (eventLoop.inEventLoop()) {
+            write(data, priority);
+        } else {
+            try {
+                eventLoop.execute(() -> write(data, priority));
+            } catch (RejectedExecutionException e) {
+                // event loop shut down, this message can't be sent anymore
+                statistics.addPendingBytes(-length);
+                data.release();
+            }
+        }
+    }
+
+    /**
+     * Block until the channel is writable or closed. Does nothing when called from the event loop.
+     */
+    private void awaitWritable() {
+        if (channel.eventLoop().inEventLoop()) {
+            // blocking here would deadlock
+            return;
+        }
+        synchronized (writabilityLock) {
+            while (!channel.isWritable() && channel.isActive()) {
+                try {
+                    writabilityLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void wakeBlockedSenders() {
+        synchronized (writabilityLock) {
+            writabilityLock.notifyAll();
+        }
+        Runnable listener;
+        while ((listener = writabilityListeners.poll()) != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Write a message, or queue it in the backlog of its lane if the channel is not writable so #drainBacklog can
+     * write the lanes by weight once it is. Must be called from the event loop.
+     */
+    private void write(ByteBuf data, Priority priority) {
+        Lane lane = lanes[priority.ordinal()];
+        if (priority != Priority.CONTROL && channel.isActive() &&
+            (!lane.backlog.isEmpty() || !channel.isWritable())) {
+            // keep order: while there is a backlog, new messages go to its end
+            lane.backlog.addLast(data);
+            backlogBytes += data.readableBytes();
+            while (overflowPolicy == OverflowPolicy.DROP_OLDEST && backlogBytes > maxBacklogBytes) {
+                ByteBuf oldest = pollDroppable(data);
+                if (oldest == null) {
+                    break;
+                }
+                int length = oldest.readableBytes();
+                backlogBytes -= length;
+                statistics.addPendingBytes(-length);
+                statistics.recordDropped();
+                oldest.release();
+            }
+            return;
+        }
+        writeToChannel(data, lane);
+    }
+
+    /**
+     * Remove the oldest queued message of the lowest priority, except the given newest message.
+     *
+     * @return the removed message or null if there is nothing else to drop.
+     */
+    private ByteBuf pollDroppable(ByteBuf newest) {
+        for (int i = lanes.length - 1; i >= 0; i--) {
+            Deque<ByteBuf> backlog = lanes[i].backlog;
+            // the newest message is last, so if it is first it is alone
+            if (!backlog.isEmpty() && backlog.peekFirst() != newest) {
+                return backlog.pollFirst();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Write the messages queued in the backlogs until the channel is not writable anymore, in weighted rounds over the
+     * lanes. Must be called from the event loop.
+     */
+    private void drainBacklog() {
+        boolean progress = true;
+        while (progress && channel.isWritable()) {
+            progress = false;
+            for (Lane lane : lanes) {
+                for (int i = lane.priority.getWeight(); i > 0 && channel.isWritable() && !lane.backlog.isEmpty(); i--) {
+                    ByteBuf data = lane.backlog.pollFirst();
+                    backlogBytes -= data.readableBytes();
+                    writeToChannel(data, lane);
+                    progress = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Release all messages queued in the backlogs. Must be called from the event loop.
+     */
+    private void discardBacklog() {
+        for (Lane lane : lanes) {
+            while (!lane.backlog.isEmpty()) {
+                ByteBuf data = lane.backlog.pollFirst();
+                statistics.addPendingBytes(-data.readableBytes());
+                data.release();
+            }
+        }
+        backlogBytes = 0;
+    }
+
+    /**
+     * Write a message, or start streaming it in fragments in the given lane if it does not fit into a single frame.
+     * Must be called from the event loop.
+     */
+    private void writeToChannel(ByteBuf data, Lane lane) {
+        int length = data.readableBytes();
+        if (length > Framer.MAXIMUM_FRAME_LENGTH) {
+            if (length > Framer.MAXIMUM_MESSAGE_LENGTH) {
+                statistics.addPendingBytes(-length);
+                data.release();
+                channel.pipeline().fireExceptionCaught(
+                        new TooLongFrameException("Message too long: " + length + " bytes"));
+                return;
+            }
+            lane.streams.addLast(new OutgoingStream(nextStreamId++ & Integer.MAX_VALUE, data));
+            schedulePump();
+        } else {
+            writeFrame(data, length);
+        }
+    }
+
+    private void schedulePump() {
+        if (!pumpScheduled) {
+            pumpScheduled = true;
+            channel.eventLoop().execute(this::pumpStreams);
+        }
+    }
+
+    /**
+     * Write up to the weight of each lane in fragments, round-robin over the streams of the lane, and reschedule.
+     * Yielding to the event loop between rounds lets small messages sent in the meantime overtake large ones instead
+     * of waiting for the whole transfer. Stops while the channel is not writable, #channelWritabilityChanged resumes.
+     */
+    private void pumpStreams() {
+        pumpScheduled = false;
+        if (!channel.isActive()) {
+            // closed before this stream started, nobody will resume us
+            discardStreams();
+            return;
+        }
+        for (Lane lane : lanes) {
+            for (int i = lane.priority.getWeight(); i > 0 && channel.isWritable() && !lane.streams.isEmpty(); i--) {
+                OutgoingStream stream = lane.streams.pollFirst();
+                ByteBuf remaining = stream.remaining;
+                int length = Math.min(remaining.readableBytes(), Framer.MAXIMUM_FRAME_LENGTH);
+                boolean last = length == remaining.readableBytes();
+                writeFrame(new Framer.Fragment(remaining.readSlice(length).retain(), stream.id, last), length);
+                if (last) {
+                    remaining.release();
+                } else {
+                    lane.streams.addLast(stream);
+                }
+            }
+        }
+        if (hasStreams() && channel.isWritable()) {
+            schedulePump();
+        }
+    }
+
+    private boolean hasStreams() {
+        for (Lane lane : lanes) {
+            if (!lane.streams.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Release all streams that were not fully written yet. Must be called from the event loop.
+     */
+    private void discardStreams() {
+        for (Lane lane : lanes) {
+            while (!lane.streams.isEmpty()) {
+                ByteBuf remaining = lane.streams.pollFirst().remaining;
+                statistics.addPendingBytes(-remaining.readableBytes());
+                remaining.release();
+            }
+        }
+    }
+
+    /**
+     * Write a single frame without flushing and make sure a flush happens according to our FlushPolicy. Must be
+     * called from the event loop.
+     */
+    private void writeFrame(Object frame, int length) {
+        unflushedMessages++;
+        unflushedBytes += length;
+        channel.write(frame).addListener(future -> statistics.addPendingBytes(-length));
+
+        if (unflushedMessages >= flushPolicy.getMaxMessages() || unflushedBytes >= flushPolicy.getMaxBytes()) {
+            // limit reached, flush now
+            flush();
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            long delay = flushPolicy.getMaxDelayMicros();
+            if (delay == 0) {
+                // flush after all tasks that are currently queued on the event loop (likely more writes)
+                channel.eventLoop().execute(this::scheduledFlush);
+            } else {
+                channel.eventLoop().schedule(this::scheduledFlush, delay, TimeUnit.MICROSECONDS);
+            }
+        }
+    }
+
+    private void scheduledFlush() {
+        flushScheduled = false;
+        flush();
+    }
+
+    /**
+     * Flush all written messages. Must be called from the event loop.
+     */
+    private void flush() {
+        if (unflushedMessages == 0) {
+            return;
+        }
+        channel.flush();
+        statistics.recordFlush(unflushedMessages);
+        unflushedMessages = 0;
+        unflushedBytes = 0;
     }
 
     @Override
@@ -110,4 +494,41 @@ class NettyConnection implements Connection {
             });
         } catch (Exception ignored) {}
     }
+
+    /**
+     * Outbound queues of one Priority.
+     */
+    @RequiredArgsConstructor
+    private static class Lane {
+        private final Priority priority;
+        /**
+         * Messages that could not be written yet because the channel was not writable.
+         */
+        private final Deque<ByteBuf> backlog = new ArrayDeque<>();
+        /**
+         * Messages larger than a single frame that are currently being written in fragments.
+         */
+        private final Deque<OutgoingStream> streams = new ArrayDeque<>();
+
+        static Lane[] createLanes() {
+            Priority[] priorities = Priority.values();
+            Lane[] lanes = new Lane[priorities.length];
+            for (int i = 0; i < lanes.length; i++) {
+                lanes[i] = new Lane(priorities[i]);
+            }
+            return lanes;
+        }
+    }
+
+    /**
+     * A message that is being written in fragments.
+     */
+    @RequiredArgsConstructor
+    private static class OutgoingStream {
+        private final int id;
+        /**
+         * The part of the message that was not written yet.
+         */
+        private final ByteBuf remaining;
+    }
 }
@@ -8,97 +8,310 @@ package at.yawk.accordion.netty;
 
 import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.util.AttributeKey;
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.SocketAddress;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
+import java.net.SocketException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import lombok.Getter;
 
 /**
- * Netty Connector implementation.
+ * Netty Connector implementation. All connections and servers created by one NettyConnector share the same boss and
+ * worker event loop groups so the thread count does not grow with the number of peers.
+ * <p/>
+ * If a domain socket directory is configured (epoll only), servers additionally listen on a unix domain socket named
+ * after their port in that directory and connections to addresses on this host use that socket instead of TCP when
+ * it exists.
  *
  * @author yawkat
  */
 public class NettyConnector implements Connector {
     /**
-     * Value used for SO_BACKLOG server socket property. Defines how many connection requests may be opened before new
-     * ones are refused.
+     * Default write buffer water marks of netty channels.
      */
-    private static final int BACKLOG_VALUE = 128;
+    static final int DEFAULT_LOW_WATER_MARK = 32 * 1024;
+    static final int DEFAULT_HIGH_WATER_MARK = 64 * 1024;
+    /**
+     * Default time after which connection attempts fail.
+     */
+    static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
 
     /**
-     * Singleton instance.
+     * Channel attribute holding the connection of a channel.
      */
-    @Getter private static final Connector instance = new NettyConnector();
+    private static final AttributeKey<NettyConnection> CONNECTION_KEY =
+            AttributeKey.valueOf(NettyConnector.class.getName() + ".connection");
 
-    private NettyConnector() {}
+    private static final AtomicInteger threadId = new AtomicInteger();
 
-    @Override
-    public Optional<Connection> connect(SocketAddress address) {
-        // TODO find a non-hacky method to close channels
-        Collection<Channel> registeredChannels = Collections.synchronizedList(new ArrayList<>());
+    /**
+     * Socket implementation used for all our channels.
+     */
+    @Getter private final Transport transport;
+    /**
+     * Allocator used for all buffers read from our channels.
+     */
+    private final ByteBufAllocator allocator;
+    /**
+     * Flush policy of our connections.
+     */
+    private final FlushPolicy flushPolicy;
+    /**
+     * Write buffer water marks of our channels. Channels become unwritable above the high water mark and writable
+     * again below the low water mark.
+     */
+    private final int lowWaterMark;
+    private final int highWaterMark;
+    /**
+     * What our connections do with messages while they are unwritable.
+     */
+    private final OverflowPolicy overflowPolicy;
+    /**
+     * Directory of our unix domain sockets if same-host connections should use them.
+     */
+    private final Optional<Path> domainSocketDirectory;
+    /**
+     * Time in milliseconds after which connection attempts fail.
+     */
+    private final int connectTimeoutMillis;
 
-        EventLoopGroup workerGroup = new NioEventLoopGroup() {
-            @Override
-            public ChannelFuture register(Channel channel, ChannelPromise promise) {
-                registeredChannels.add(channel);
-                return super.register(channel, promise);
-            }
-        };
+    /**
+     * Event loop group that accepts incoming connections of our servers.
+     */
+    private final EventLoopGroup bossGroup;
+    /**
+     * Event loop group that handles the IO of all our connections, both incoming and outgoing.
+     */
+    private final EventLoopGroup workerGroup;
 
-        AtomicReference<Connection> connectionRef = new AtomicReference<>();
+    NettyConnector(ThreadGroup threadGroup,
+                   Transport transport,
+                   ByteBufAllocator allocator,
+                   FlushPolicy flushPolicy,
+                   int lowWaterMark,
+                   int highWaterMark,
+                   OverflowPolicy overflowPolicy,
+                   Optional<Path> domainSocketDirectory,
+                   int connectTimeoutMillis,
+                   int bossThreads,
+                   int workerThreads) {
+        this.transport = transport;
+        this.allocator = allocator;
+        this.flushPolicy = flushPolicy;
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+        this.overflowPolicy = overflowPolicy;
+        this.domainSocketDirectory = domainSocketDirectory;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        bossGroup = transport.createEventLoopGroup(bossThreads,
+                                                   threadFactory(threadGroup, "Accordion boss thread #"));
+        workerGroup = transport.createEventLoopGroup(workerThreads,
+                                                     threadFactory(threadGroup, "Accordion worker thread #"));
+    }
 
-        // init
+    public static NettyConnectorBuilder builder() {
+        return new NettyConnectorBuilder();
+    }
+
+    /**
+     * Create a new NettyConnector with default settings.
+     */
+    public static NettyConnector create() {
+        return builder().build();
+    }
+
+    /**
+     * Get a connector with default settings that is shared by all callers of this method. It is created on first use
+     * and never shut down.
+     *
+     * @deprecated Create a connector with #create or #builder instead and shut it down when done.
+     */
+    @Deprecated
+    public static Connector getInstance() {
+        return SharedInstance.INSTANCE;
+    }
+
+    private static ThreadFactory threadFactory(ThreadGroup threadGroup, String namePrefix) {
+        return task -> new Thread(threadGroup, task, namePrefix + threadId.incrementAndGet());
+    }
+
+    @Override
+    public CompletableFuture<Connection> connect(SocketAddress address) {
+        Optional<DomainSocketAddress> domainSocketAddress = localDomainSocketAddress(address);
+        if (domainSocketAddress.isPresent()) {
+            // same host, skip the TCP stack
+            return connect(clientBootstrap(EpollDomainSocketChannel.class), domainSocketAddress.get())
+                    .handle((connection, error) -> connection != null ?
+                            // stale socket file or remote without domain sockets, use TCP
+                            CompletableFuture.completedFuture(connection) : connectTcp(address))
+                    .thenCompose(future -> future);
+        }
+        return connectTcp(address);
+    }
+
+    private CompletableFuture<Connection> connectTcp(SocketAddress address) {
+        Bootstrap bootstrap = clientBootstrap(transport.socketChannelType());
+        transport.configure(bootstrap);
+        return connect(bootstrap, transport.resolve(address));
+    }
+
+    /**
+     * Create a client bootstrap for the given channel type that initializes channels with our settings.
+     */
+    private Bootstrap clientBootstrap(Class<? extends Channel> channelType) {
         Bootstrap bootstrap = new Bootstrap()
                 .group(workerGroup)
                 .handler(new ChannelHandlerAdapter() {
                     @Override
                     public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
-                        NettyConnection connection = new NettyConnection(ctx.channel());
-                        connectionRef.set(connection);
-                        connection.init();
+                        createConnection(ctx.channel()).init();
                     }
                 })
-                .channel(NioSocketChannel.class)
-                .option(ChannelOption.SO_KEEPALIVE, true);
+                .channel(channelType)
+                .option(ChannelOption.ALLOCATOR, allocator)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeoutMillis);
+        waterMarkOptions().forEach((option, value) -> bootstrap.option(option, value));
+        return bootstrap;
+    }
 
+    private CompletableFuture<Connection> connect(Bootstrap bootstrap, SocketAddress address) {
+        CompletableFuture<Connection> future = new CompletableFuture<>();
         try {
-            // connect
-            ChannelFuture connectFuture = bootstrap.connect(address);
-            // wait for connection
-            connectFuture.sync();
-            return Optional.of(connectionRef.get());
+            bootstrap.connect(address).addListener((ChannelFutureListener) connectFuture -> {
+                if (connectFuture.isSuccess()) {
+                    future.complete(connectFuture.channel().attr(CONNECTION_KEY).get());
+                } else {
+                    // the event loops are shared so we only kill the channel of this attempt
+                    NettyConnection.close(connectFuture.channel());
+                    future.completeExceptionally(connectFuture.cause());
+                }
+            });
         } catch (Exception e) {
-            // shut down workers
-            workerGroup.shutdownGracefully();
-
-            // kill channels
-            registeredChannels.forEach(NettyConnection::close);
-
-            return Optional.empty();
+            // event loop shut down
+            future.completeExceptionally(e);
         }
+        return future;
     }
 
     @Override
     public Server listen(SocketAddress inf) {
-        EventLoopGroup bossGroup = new NioEventLoopGroup();
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
-        ServerBootstrap bootstrap = new ServerBootstrap();
+        ServerBootstrap bootstrap = serverBootstrap(transport.serverSocketChannelType());
+        transport.configure(bootstrap);
+        NettyServer server = new NettyServer(bootstrap, transport.resolve(inf), this::createConnection);
+        server.init();
 
+        if (domainSocketDirectory.isPresent() && inf instanceof InetSocketAddress) {
+            // also accept same-host peers on a domain socket
+            NettyServer domainServer = new DomainSocketServer(
+                    serverBootstrap(EpollServerDomainSocketChannel.class),
+                    domainSocketAddress(((InetSocketAddress) inf).getPort()),
+                    this::createConnection);
+            domainServer.init();
+            // domain socket first: it fails the bind if the socket is in use, before we take the TCP port
+            return new CompositeServer(Arrays.asList(domainServer, server));
+        }
+
+        return server;
+    }
+
+    private ServerBootstrap serverBootstrap(Class<? extends ServerChannel> channelType) {
+        ServerBootstrap bootstrap = new ServerBootstrap();
         bootstrap.group(bossGroup, workerGroup)
-                .channel(NioServerSocketChannel.class)
-                .option(ChannelOption.SO_BACKLOG, BACKLOG_VALUE)
-                .childOption(ChannelOption.SO_KEEPALIVE, true);
+                .channel(channelType)
+                .option(ChannelOption.ALLOCATOR, allocator)
+                .childOption(ChannelOption.ALLOCATOR, allocator);
+        waterMarkOptions().forEach((option, value) -> bootstrap.childOption(option, value));
+        return bootstrap;
+    }
 
-        NettyServer server = new NettyServer(bootstrap, inf);
-        server.init();
+    /**
+     * The domain socket a node listening on the given port binds to.
+     */
+    private DomainSocketAddress domainSocketAddress(int port) {
+        return new DomainSocketAddress(domainSocketDirectory.get().resolve("accordion-" + port + ".sock").toFile());
+    }
 
-        return server;
+    /**
+     * Get the domain socket to use for connecting to the given address: present if domain sockets are enabled, the
+     * address is on this host and a server socket exists for its port.
+     */
+    private Optional<DomainSocketAddress> localDomainSocketAddress(SocketAddress address) {
+        if (!domainSocketDirectory.isPresent() || !(address instanceof InetSocketAddress)) {
+            return Optional.empty();
+        }
+        InetSocketAddress inetAddress = (InetSocketAddress) address;
+        if (inetAddress.isUnresolved() || !isLocalHost(inetAddress.getAddress())) {
+            return Optional.empty();
+        }
+        DomainSocketAddress domainSocketAddress = domainSocketAddress(inetAddress.getPort());
+        return new File(domainSocketAddress.path()).exists() ? Optional.of(domainSocketAddress) : Optional.empty();
+    }
+
+    /**
+     * Returns whether the given address belongs to this host.
+     */
+    private static boolean isLocalHost(InetAddress address) {
+        if (address.isLoopbackAddress() || address.isAnyLocalAddress()) {
+            return true;
+        }
+        try {
+            return NetworkInterface.getByInetAddress(address) != null;
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The channel options that set our water marks, in an order that passes the consistency checks against the netty
+     * default water marks.
+     */
+    private Map<ChannelOption<Integer>, Integer> waterMarkOptions() {
+        Map<ChannelOption<Integer>, Integer> options = new LinkedHashMap<>();
+        if (highWaterMark < DEFAULT_LOW_WATER_MARK) {
+            // new high mark is below the current low mark, lower the low mark first
+            options.put(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, lowWaterMark);
+            options.put(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, highWaterMark);
+        } else {
+            options.put(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, highWaterMark);
+            options.put(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, lowWaterMark);
+        }
+        return options;
+    }
+
+    /**
+     * Wrap the given channel in a connection with our settings. The connection still has to be initialized.
+     */
+    private NettyConnection createConnection(Channel channel) {
+        NettyConnection connection = new NettyConnection(channel, flushPolicy, overflowPolicy, highWaterMark);
+        channel.attr(CONNECTION_KEY).set(connection);
+        return connection;
+    }
+
+    @Override
+    public void shutdown() {
+        bossGroup.shutdownGracefully();
+        workerGroup.shutdownGracefully();
+    }
+
+    /**
+     * Holder of the #getInstance connector so it is only created when first requested.
+     */
+    private static class SharedInstance {
+        private static final Connector INSTANCE = create();
     }
 }
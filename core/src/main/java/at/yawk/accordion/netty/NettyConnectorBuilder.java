@@ -0,0 +1,160 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.netty;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builder class for NettyConnector.
+ *
+ * @author yawkat
+ */
+public class NettyConnectorBuilder {
+    private Optional<ThreadGroup> threadGroup = Optional.empty();
+    private Transport transport = Transport.getDefault();
+    private ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+    private FlushPolicy flushPolicy = FlushPolicy.IMMEDIATE;
+    private int lowWaterMark = NettyConnector.DEFAULT_LOW_WATER_MARK;
+    private int highWaterMark = NettyConnector.DEFAULT_HIGH_WATER_MARK;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private Optional<Path> domainSocketDirectory = Optional.empty();
+    private int connectTimeoutMillis = NettyConnector.DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    /**
+     * Thread counts of the event loop groups. 0 means netty default (twice the number of cores).
+     */
+    private int bossThreads = 1;
+    private int workerThreads = 0;
+
+    NettyConnectorBuilder() {}
+
+    /**
+     * What thread group should be used for event loop threads. Defaults to the thread group of the calling thread.
+     */
+    public NettyConnectorBuilder threadGroup(ThreadGroup threadGroup) {
+        this.threadGroup = Optional.of(threadGroup);
+        return this;
+    }
+
+    /**
+     * What socket implementation to use. If the given transport is not available on this platform, NIO is used
+     * instead. Defaults to epoll on linux and NIO everywhere else.
+     */
+    public NettyConnectorBuilder transport(Transport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    /**
+     * What allocator to use for buffers read from the network. Defaults to the pooled (direct if possible)
+     * allocator.
+     */
+    public NettyConnectorBuilder allocator(ByteBufAllocator allocator) {
+        this.allocator = allocator;
+        return this;
+    }
+
+    /**
+     * When messages written to connections should be flushed. Defaults to FlushPolicy.IMMEDIATE.
+     */
+    public NettyConnectorBuilder flushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+        return this;
+    }
+
+    /**
+     * Outbound buffer size limits per connection in bytes. A connection stops accepting messages (see #overflowPolicy)
+     * once more than highWaterMark bytes are pending and resumes when less than lowWaterMark bytes are pending.
+     * Defaults to 32 KiB and 64 KiB.
+     */
+    public NettyConnectorBuilder writeBufferWaterMarks(int lowWaterMark, int highWaterMark) {
+        if (lowWaterMark < 0 || highWaterMark < lowWaterMark) {
+            throw new IllegalArgumentException("Invalid water marks: " + lowWaterMark + " / " + highWaterMark);
+        }
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+        return this;
+    }
+
+    /**
+     * What to do with new messages for a connection that is above its high water mark. Defaults to
+     * OverflowPolicy.BLOCK.
+     */
+    public NettyConnectorBuilder overflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    /**
+     * Directory for unix domain sockets. If set and the epoll transport is used, servers also listen on a domain
+     * socket named after their port in this directory and connections to nodes on the same host go through it instead
+     * of TCP. All nodes on a host must use the same directory. Disabled by default.
+     */
+    public NettyConnectorBuilder domainSocketDirectory(Path domainSocketDirectory) {
+        this.domainSocketDirectory = Optional.of(domainSocketDirectory);
+        return this;
+    }
+
+    /**
+     * Time after which connection attempts fail. Defaults to 10 seconds.
+     */
+    public NettyConnectorBuilder connectTimeout(long timeout, TimeUnit unit) {
+        long millis = unit.toMillis(timeout);
+        if (millis <= 0 || millis > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid connect timeout: " + millis + "ms");
+        }
+        this.connectTimeoutMillis = (int) millis;
+        return this;
+    }
+
+    /**
+     * How many threads should accept incoming connections. Defaults to 1.
+     */
+    public NettyConnectorBuilder bossThreads(int bossThreads) {
+        if (bossThreads < 0) {
+            throw new IllegalArgumentException("Negative thread count");
+        }
+        this.bossThreads = bossThreads;
+        return this;
+    }
+
+    /**
+     * How many threads should handle connection IO. 0 uses the netty default of twice the number of cores, which is
+     * also the default.
+     */
+    public NettyConnectorBuilder workerThreads(int workerThreads) {
+        if (workerThreads < 0) {
+            throw new IllegalArgumentException("Negative thread count");
+        }
+        this.workerThreads = workerThreads;
+        return this;
+    }
+
+    /**
+     * Build this NettyConnector. The event loop groups are started immediately and must be released through
+     * Connector#shutdown.
+     */
+    public NettyConnector build() {
+        ThreadGroup threadGroup = this.threadGroup.orElseGet(() -> Thread.currentThread().getThreadGroup());
+        Transport transport = this.transport.orFallback();
+        return new NettyConnector(threadGroup,
+                                  transport,
+                                  allocator,
+                                  flushPolicy,
+                                  lowWaterMark,
+                                  highWaterMark,
+                                  overflowPolicy,
+                                  // domain sockets need the epoll event loops
+                                  transport == Transport.EPOLL ? domainSocketDirectory : Optional.empty(),
+                                  connectTimeoutMillis,
+                                  bossThreads,
+                                  workerThreads);
+    }
+}
@@ -7,11 +7,12 @@
 package at.yawk.accordion.netty;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
-import io.netty.channel.socket.SocketChannel;
 import java.net.SocketAddress;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import lombok.RequiredArgsConstructor;
 import lombok.Setter;
 
@@ -24,6 +25,10 @@ import lombok.Setter;
 class NettyServer implements Server {
     private final ServerBootstrap bootstrap;
     private final SocketAddress inf;
+    /**
+     * Function used to wrap accepted channels.
+     */
+    private final Function<Channel, NettyConnection> connectionFactory;
 
     private ChannelFuture future;
 
@@ -33,10 +38,10 @@ class NettyServer implements Server {
      * Initialize this server so connections can be accepted (does not bind!).
      */
     void init() {
-        bootstrap.childHandler(new ChannelInitializer<SocketChannel>() {
+        bootstrap.childHandler(new ChannelInitializer<Channel>() {
             @Override
-            protected void initChannel(SocketChannel ch) throws Exception {
-                NettyConnection connection = new NettyConnection(ch);
+            protected void initChannel(Channel ch) throws Exception {
+                NettyConnection connection = connectionFactory.apply(ch);
                 connection.init();
                 connectionHandler.accept(connection);
             }
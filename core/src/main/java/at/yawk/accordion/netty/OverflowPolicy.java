@@ -0,0 +1,32 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.netty;
+
+/**
+ * What a connection should do with new messages while its outbound buffer is above the high water mark.
+ *
+ * @author yawkat
+ */
+public enum OverflowPolicy {
+    /**
+     * Block the sending thread until the buffer drains below the low water mark. Sends from the event loop itself are
+     * never blocked, and Connection#trySend queues the message with the caller instead.
+     */
+    BLOCK,
+    /**
+     * Queue the new message and drop the oldest queued messages once the queue exceeds the high water mark.
+     */
+    DROP_OLDEST,
+    /**
+     * Drop the new message.
+     */
+    DROP_NEWEST,
+    /**
+     * Drop the new message and disconnect the slow peer.
+     */
+    DISCONNECT,
+}
@@ -0,0 +1,45 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.netty;
+
+/**
+ * Priority class of an outgoing message. While a connection keeps up, small messages are written right away in the
+ * order they are sent. Once its outbound buffer is above the high water mark, every connection queues messages of each
+ * class separately and serves the classes in order with a weighted scheduler: per round, each class may write up to
+ * its weight of queued messages before the next class gets a turn. Messages larger than a single frame always go
+ * through the same scheduler, one fragment at a time.
+ *
+ * @author yawkat
+ */
+public enum Priority {
+    /**
+     * Small protocol messages like heartbeats. Never held back or dropped by the OverflowPolicy and written ahead of
+     * all queued messages.
+     */
+    CONTROL(16),
+    /**
+     * Latency-sensitive application messages. The default.
+     */
+    NORMAL(4),
+    /**
+     * Large transfers that may be delayed in favor of everything else. Dropped first with OverflowPolicy.DROP_OLDEST.
+     */
+    BULK(1);
+
+    /**
+     * Messages written per scheduler round.
+     */
+    private final int weight;
+
+    Priority(int weight) {
+        this.weight = weight;
+    }
+
+    int getWeight() {
+        return weight;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.netty;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalEventLoopGroup;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Socket implementation used by NettyConnector.
+ *
+ * @author yawkat
+ */
+public enum Transport {
+    /**
+     * Java NIO selector-based transport. Available on all platforms.
+     */
+    NIO {
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        EventLoopGroup createEventLoopGroup(int threads, ThreadFactory threadFactory) {
+            return new NioEventLoopGroup(threads, threadFactory);
+        }
+
+        @Override
+        Class<? extends Channel> socketChannelType() {
+            return NioSocketChannel.class;
+        }
+
+        @Override
+        Class<? extends ServerChannel> serverSocketChannelType() {
+            return NioServerSocketChannel.class;
+        }
+    },
+    /**
+     * Native linux epoll transport. Uses edge-triggered mode, TCP_QUICKACK and SO_REUSEPORT on servers.
+     */
+    EPOLL {
+        @Override
+        public boolean isAvailable() {
+            return Epoll.isAvailable();
+        }
+
+        @Override
+        EventLoopGroup createEventLoopGroup(int threads, ThreadFactory threadFactory) {
+            return new EpollEventLoopGroup(threads, threadFactory);
+        }
+
+        @Override
+        Class<? extends Channel> socketChannelType() {
+            return EpollSocketChannel.class;
+        }
+
+        @Override
+        Class<? extends ServerChannel> serverSocketChannelType() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        void configure(Bootstrap bootstrap) {
+            super.configure(bootstrap);
+            bootstrap.option(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED)
+                    .option(EpollChannelOption.TCP_QUICKACK, true);
+        }
+
+        @Override
+        void configure(ServerBootstrap bootstrap) {
+            super.configure(bootstrap);
+            bootstrap.option(EpollChannelOption.SO_REUSEPORT, true)
+                    .option(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED)
+                    .childOption(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED)
+                    .childOption(EpollChannelOption.TCP_QUICKACK, true);
+        }
+    },
+    /**
+     * In-JVM transport that passes buffers between channels directly instead of going through the socket stack. Only
+     * connects to servers in the same JVM: addresses are mapped to local addresses by port, so a server listening on
+     * any interface at port p is reached by connecting to any host at port p.
+     */
+    LOCAL {
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        EventLoopGroup createEventLoopGroup(int threads, ThreadFactory threadFactory) {
+            return new LocalEventLoopGroup(threads, threadFactory);
+        }
+
+        @Override
+        Class<? extends Channel> socketChannelType() {
+            return LocalChannel.class;
+        }
+
+        @Override
+        Class<? extends ServerChannel> serverSocketChannelType() {
+            return LocalServerChannel.class;
+        }
+
+        @Override
+        SocketAddress resolve(SocketAddress address) {
+            if (address instanceof InetSocketAddress) {
+                return new LocalAddress("accordion-" + ((InetSocketAddress) address).getPort());
+            }
+            return address;
+        }
+
+        @Override
+        void configure(Bootstrap bootstrap) {
+            // no socket options
+        }
+
+        @Override
+        void configure(ServerBootstrap bootstrap) {
+            // no socket options
+        }
+    };
+
+    /**
+     * Value used for SO_BACKLOG server socket property. Defines how many connection requests may be opened before new
+     * ones are refused.
+     */
+    private static final int BACKLOG_VALUE = 128;
+
+    /**
+     * Get the best transport available on this platform.
+     */
+    public static Transport getDefault() {
+        return EPOLL.isAvailable() ? EPOLL : NIO;
+    }
+
+    /**
+     * Returns whether this transport can be used on this platform.
+     */
+    public abstract boolean isAvailable();
+
+    /**
+     * Returns this transport if it is available or NIO as a fallback otherwise.
+     */
+    public Transport orFallback() {
+        return isAvailable() ? this : NIO;
+    }
+
+    abstract EventLoopGroup createEventLoopGroup(int threads, ThreadFactory threadFactory);
+
+    abstract Class<? extends Channel> socketChannelType();
+
+    abstract Class<? extends ServerChannel> serverSocketChannelType();
+
+    /**
+     * Map the given address to one our channels can connect or bind to.
+     */
+    SocketAddress resolve(SocketAddress address) {
+        return address;
+    }
+
+    /**
+     * Apply the socket options of this transport to a client bootstrap.
+     */
+    void configure(Bootstrap bootstrap) {
+        bootstrap.option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.TCP_NODELAY, true);
+    }
+
+    /**
+     * Apply the socket options of this transport to a server bootstrap.
+     */
+    void configure(ServerBootstrap bootstrap) {
+        bootstrap.option(ChannelOption.SO_BACKLOG, BACKLOG_VALUE)
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childOption(ChannelOption.TCP_NODELAY, true);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.distributed;
+
+import at.yawk.accordion.netty.Connection;
+import at.yawk.accordion.netty.Priority;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AsynchronousConnectionTest {
+    @Test
+    public void testBackedUpBulkDoesNotHoldBackOtherPriorities() {
+        BackedUpConnection backing = new BackedUpConnection();
+        AsynchronousConnection connection = new AsynchronousConnection(backing, Runnable::run);
+
+        connection.send(message(1), Priority.BULK);
+        connection.send(message(2), Priority.BULK);
+        connection.send(message(3), Priority.NORMAL);
+        connection.send(message(4), Priority.CONTROL);
+        assertEquals(Arrays.asList(3, 4), backing.sent);
+
+        // the bulk lane resumes once the connection accepts messages again
+        backing.backedUp = false;
+        backing.onWritable.run();
+        assertEquals(Arrays.asList(3, 4, 1, 2), backing.sent);
+    }
+
+    private static ByteBuf message(int id) {
+        return Unpooled.buffer(4).writeInt(id);
+    }
+
+    /**
+     * Connection that doesn't accept BULK messages while #backedUp is set.
+     */
+    private static class BackedUpConnection implements Connection {
+        private final List<Integer> sent = new ArrayList<>();
+        private boolean backedUp = true;
+        private Runnable onWritable;
+
+        @Override
+        public void send(ByteBuf data) {
+            sent.add(data.readInt());
+            data.release();
+        }
+
+        @Override
+        public boolean trySend(ByteBuf data, Priority priority, Runnable onWritable) {
+            if (backedUp && priority == Priority.BULK) {
+                this.onWritable = onWritable;
+                return false;
+            }
+            send(data);
+            return true;
+        }
+
+        @Override
+        public void disconnect() {}
+
+        @Override
+        public void setMessageHandler(Consumer<ByteBuf> listener) {}
+
+        @Override
+        public void setExceptionHandler(Consumer<Throwable> listener) {}
+
+        @Override
+        public void setDisconnectHandler(Runnable listener) {}
+
+        @Override
+        public Map<String, Object> properties() {
+            return new ConcurrentHashMap<>();
+        }
+    }
+}
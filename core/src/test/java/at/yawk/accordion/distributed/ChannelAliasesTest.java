@@ -0,0 +1,110 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.distributed;
+
+import at.yawk.accordion.codec.VarInt;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChannelAliasesTest {
+    /**
+     * First dynamic ID, see ChannelAliases#FIRST_DYNAMIC_ID.
+     */
+    private static final int FIRST_ID = 32;
+
+    private ChannelAliases sender = new ChannelAliases();
+    private ChannelAliases receiver = new ChannelAliases();
+    private final List<Integer> announced = new ArrayList<>();
+
+    private ByteBuf write(String channel) {
+        ByteBuf buf = Unpooled.buffer();
+        sender.write(buf, channel);
+        return buf;
+    }
+
+    private String read(ByteBuf buf) {
+        String channel = receiver.read(buf, announced::add);
+        assertEquals(0, buf.readableBytes());
+        return channel;
+    }
+
+    @Test
+    public void testAcknowledge() {
+        ByteBuf first = write("test");
+        assertEquals("test", read(first));
+        assertEquals(Collections.singletonList(FIRST_ID), announced);
+
+        // announced again until acknowledged, but only reported once
+        ByteBuf second = write("test");
+        assertEquals(first.writerIndex(), second.writerIndex());
+        assertEquals("test", read(second));
+        assertEquals(Collections.singletonList(FIRST_ID), announced);
+
+        sender.acknowledge(FIRST_ID);
+        ByteBuf third = write("test");
+        assertEquals(FIRST_ID << 1, VarInt.read(third.duplicate()));
+        assertEquals(1, third.readableBytes());
+        assertEquals("test", read(third));
+    }
+
+    @Test
+    public void testWellKnownChannel() {
+        ByteBuf buf = write(InternalProtocol.HEARTBEAT);
+        assertEquals(1, buf.readableBytes());
+        assertEquals(InternalProtocol.HEARTBEAT, read(buf));
+        assertTrue(announced.isEmpty());
+    }
+
+    @Test
+    public void testAliasLimit() {
+        for (int i = 0; i < 0x10000; i++) {
+            read(write("channel" + i));
+        }
+        assertEquals(0x10000, announced.size());
+        assertEquals(FIRST_ID + 0xffff, (int) announced.get(announced.size() - 1));
+
+        // table full: the name is sent with the "no alias" ID 0 every time
+        for (int i = 0; i < 2; i++) {
+            ByteBuf overflow = write("overflow");
+            assertEquals(1, VarInt.read(overflow.duplicate()));
+            assertEquals("overflow", read(overflow));
+        }
+        assertEquals(0x10000, announced.size());
+
+        // existing aliases keep working
+        sender.acknowledge(FIRST_ID);
+        assertEquals("channel0", read(write("channel0")));
+    }
+
+    @Test
+    public void testReconnect() {
+        read(write("test"));
+        sender.acknowledge(FIRST_ID);
+        ByteBuf stale = write("test");
+
+        // a new connection starts with empty tables on both sides (ConnectionManager#PROPERTY_ALIASES)
+        sender = new ChannelAliases();
+        receiver = new ChannelAliases();
+        announced.clear();
+
+        // an ID of the old connection means nothing anymore
+        assertNull(read(stale));
+        // the channel is announced again and may get a different ID
+        assertEquals("other", read(write("other")));
+        assertEquals("test", read(write("test")));
+        assertEquals(Arrays.asList(FIRST_ID, FIRST_ID + 1), announced);
+    }
+}
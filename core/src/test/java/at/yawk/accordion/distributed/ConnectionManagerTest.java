@@ -0,0 +1,181 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.distributed;
+
+import at.yawk.accordion.Channel;
+import at.yawk.accordion.netty.Connection;
+import at.yawk.accordion.netty.Priority;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.nio.ReadOnlyBufferException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static at.yawk.accordion.distributed.SequenceWindowFilter.WINDOW_SIZE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Feeds raw packets of a fake remote node into a ConnectionManager. The test channel is inline, so listeners are
+ * called on the thread that feeds the packet.
+ */
+public class ConnectionManagerTest {
+    private static final int ORIGIN = 0x1234;
+    private static final String CHANNEL = "test";
+
+    private final ConnectionManager manager = ConnectionManager.create();
+    private final FakeConnection remote = new FakeConnection();
+    /**
+     * Channel references as the remote writes them.
+     */
+    private final ChannelAliases remoteAliases = new ChannelAliases();
+
+    private final List<ByteBuf> received = new ArrayList<>();
+
+    @Before
+    public void setUp() throws InterruptedException {
+        manager.getChannel(CHANNEL, ChannelOptions.DEFAULT.inline(true)).subscribe(message -> {
+            received.add(Unpooled.copiedBuffer(message));
+        });
+        manager.addConnection(remote);
+        remote.awaitHandler();
+    }
+
+    @After
+    public void tearDown() {
+        manager.shutdown();
+    }
+
+    @Test
+    public void testFragmentedPacketOvertaken() {
+        // sent first, but fragmented and overtaken by more than a window of small packets
+        byte[] data = new byte[20000];
+        new Random(0).nextBytes(data);
+        ByteBuf large = Unpooled.wrappedBuffer(data);
+        for (int sequence = 1; sequence <= WINDOW_SIZE + 10; sequence++) {
+            remote.receive(packet(sequence, Unpooled.buffer(1).writeByte(sequence)));
+        }
+        received.clear();
+
+        remote.receive(packet(0, large.duplicate().retain()));
+        // duplicates are still detected
+        remote.receive(packet(0, large.duplicate().retain()));
+        // small packets that late are not
+        remote.receive(packet(5, Unpooled.buffer(1).writeByte(5)));
+
+        assertEquals(1, received.size());
+        assertEquals(large, received.get(0));
+        assertEquals(1, manager.getTooOldPacketCount());
+    }
+
+    @Test
+    public void testListenersGetIndependentViews() {
+        List<Integer> firstRead = new ArrayList<>();
+        List<Integer> secondRead = new ArrayList<>();
+        Channel<ByteBuf> channel = manager.getChannel(CHANNEL, ChannelOptions.DEFAULT.inline(true));
+        channel.subscribe(message -> {
+            // consume the whole message, the next listener must still see all of it
+            firstRead.add(message.readInt());
+            firstRead.add(message.readInt());
+        });
+        channel.subscribe(message -> {
+            secondRead.add(message.readableBytes());
+            secondRead.add(message.readInt());
+            try {
+                message.setInt(0, 3);
+                fail();
+            } catch (ReadOnlyBufferException expected) {}
+        });
+
+        remote.receive(packet(0, Unpooled.buffer(8).writeInt(1).writeInt(2)));
+
+        assertEquals(Arrays.asList(1, 2), firstRead);
+        assertEquals(Arrays.asList(8, 1), secondRead);
+    }
+
+    @Test
+    public void testRetainedMessageOutlivesListener() {
+        List<ByteBuf> retained = new ArrayList<>();
+        manager.getChannel(CHANNEL, ChannelOptions.DEFAULT.inline(true)).subscribe(message -> {
+            retained.add(message.retain());
+        });
+
+        remote.receive(packet(0, Unpooled.buffer(4).writeInt(42)));
+
+        ByteBuf message = retained.get(0);
+        // the manager gave up its reference after the listener returned, ours keeps the content alive
+        assertEquals(1, message.refCnt());
+        assertEquals(42, message.readInt());
+        assertTrue(message.release());
+    }
+
+    /**
+     * Build a raw packet of the remote node with the given sequence number on the test channel.
+     */
+    private ByteBuf packet(int sequence, ByteBuf payload) {
+        ByteBuf header = Unpooled.buffer();
+        header.writeLong(PacketIdGenerator.compose(ORIGIN, sequence));
+        // hops left
+        header.writeByte(0);
+        header.writeByte(Priority.NORMAL.ordinal());
+        remoteAliases.write(header, CHANNEL);
+        return Unpooled.wrappedBuffer(header, payload);
+    }
+
+    /**
+     * Connection whose received messages are passed in by the test. Sent messages are discarded.
+     */
+    private static class FakeConnection implements Connection {
+        private final CountDownLatch handlerSet = new CountDownLatch(1);
+        private final Map<String, Object> properties = new ConcurrentHashMap<>();
+        private volatile Consumer<ByteBuf> messageHandler;
+
+        void awaitHandler() throws InterruptedException {
+            assertTrue(handlerSet.await(1, TimeUnit.SECONDS));
+        }
+
+        void receive(ByteBuf message) {
+            messageHandler.accept(message);
+        }
+
+        @Override
+        public void send(ByteBuf data) {
+            data.release();
+        }
+
+        @Override
+        public void disconnect() {}
+
+        @Override
+        public void setMessageHandler(Consumer<ByteBuf> listener) {
+            messageHandler = listener;
+            handlerSet.countDown();
+        }
+
+        @Override
+        public void setExceptionHandler(Consumer<Throwable> listener) {}
+
+        @Override
+        public void setDisconnectHandler(Runnable listener) {}
+
+        @Override
+        public Map<String, Object> properties() {
+            return properties;
+        }
+    }
+}
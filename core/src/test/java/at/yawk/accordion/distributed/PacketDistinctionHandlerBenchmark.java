@@ -0,0 +1,58 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.distributed;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Throughput of PacketDistinctionHandler#register with a growing number of handler threads. Run through #main, which
+ * benchmarks 1, 4 and 16 threads.
+ *
+ * @author yawkat
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PacketDistinctionHandlerBenchmark {
+    private PacketDistinctionHandler handler;
+
+    @Setup
+    public void setUp() {
+        // clear every second so the sets stay small enough for the default heap at millions of IDs per second
+        handler = PacketDistinctionHandler.createAndStart(Thread.currentThread().getThreadGroup(), 1000);
+    }
+
+    @Benchmark
+    public boolean register() {
+        return handler.register(ThreadLocalRandom.current().nextLong());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[]{ 1, 4, 16 }) {
+            Options options = new OptionsBuilder()
+                    .include(PacketDistinctionHandlerBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .forks(1)
+                    .warmupIterations(5)
+                    .measurementIterations(5)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.distributed;
+
+import at.yawk.accordion.codec.unsafe.CodecManager;
+import at.yawk.accordion.netty.Connection;
+import at.yawk.accordion.netty.Connector;
+import at.yawk.accordion.netty.NettyConnector;
+import at.yawk.accordion.netty.Server;
+import at.yawk.accordion.netty.Transport;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import lombok.RequiredArgsConstructor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * RPC between three nodes on the LOCAL transport: left - hub - right.
+ */
+public class RpcManagerTest {
+    private static final AtomicInteger nextPort = new AtomicInteger(41000);
+    private static final long TIMEOUT_MILLIS = 300;
+
+    private final Connector connector = NettyConnector.builder().transport(Transport.LOCAL).build();
+    private final List<ConnectionManager> managers = new ArrayList<>();
+    private final List<RpcManager> rpcManagers = new ArrayList<>();
+
+    private RpcManager hub;
+    private RpcManager left;
+    private RpcManager right;
+
+    @Before
+    public void setUp() throws Exception {
+        ConnectionManager hubManager = connectionManager();
+        SocketAddress address = new InetSocketAddress(nextPort.getAndIncrement());
+        Server server = connector.listen(address);
+        server.setConnectionHandler(hubManager::addConnection);
+        server.bind();
+        ConnectionManager leftManager = connectionManager();
+        leftManager.addConnection(connect(address));
+        ConnectionManager rightManager = connectionManager();
+        rightManager.addConnection(connect(address));
+
+        hub = rpcManager(hubManager, 1);
+        left = rpcManager(leftManager, 1);
+        right = rpcManager(rightManager, 1);
+    }
+
+    @After
+    public void tearDown() {
+        rpcManagers.forEach(RpcManager::close);
+        managers.forEach(ConnectionManager::shutdown);
+        connector.shutdown();
+    }
+
+    @Test
+    public void testReplyRouting() throws Exception {
+        right.register(Ping.class, String.class, ping -> "pong " + ping.text);
+        awaitHandlers(left, ping -> true);
+
+        // two hops each way: the reply is routed back through the hub
+        assertEquals("pong a", left.call(new Ping("a"), String.class).get());
+        assertEquals("pong b", left.call(new Ping("b"), String.class).get());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        CompletableFuture<String> call = left.call(new Ping("unanswered"), String.class);
+        try {
+            call.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+
+        // the permit is released again
+        assertRejected(left.call(new Ping("unanswered"), String.class), TimeoutException.class);
+    }
+
+    @Test
+    public void testMaxInFlight() throws Exception {
+        CompletableFuture<String> first = left.call(new Ping("unanswered"), String.class);
+        assertRejected(left.call(new Ping("unanswered"), String.class), RejectedExecutionException.class);
+        assertRejected(first, TimeoutException.class);
+    }
+
+    @Test
+    public void testFirstReplyWins() throws Exception {
+        Collection<String> leftRequests = new ConcurrentLinkedQueue<>();
+        Collection<String> rightRequests = new ConcurrentLinkedQueue<>();
+        CountDownLatch rightReceivedRace = new CountDownLatch(1);
+        CountDownLatch releaseRight = new CountDownLatch(1);
+        left.register(Ping.class, String.class, ping -> {
+            leftRequests.add(ping.text);
+            return "left";
+        });
+        right.register(Ping.class, String.class, ping -> {
+            rightRequests.add(ping.text);
+            if (ping.text.equals("race")) {
+                rightReceivedRace.countDown();
+                try {
+                    releaseRight.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return "right";
+        });
+        awaitHandlers(hub, ping -> leftRequests.contains(ping.text) && rightRequests.contains(ping.text));
+
+        assertEquals("left", hub.call(new Ping("race"), String.class).get());
+        assertTrue(rightReceivedRace.await(1, TimeUnit.SECONDS));
+        releaseRight.countDown();
+        // the late reply from right is ignored and does not release the permit a second time
+        hub.call(new Ping("after"), String.class).get();
+        CompletableFuture<String> unanswered = hub.call(new Unanswered(), String.class);
+        assertRejected(hub.call(new Unanswered(), String.class), RejectedExecutionException.class);
+        assertRejected(unanswered, TimeoutException.class);
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        CompletableFuture<String> pending = left.call(new Ping("unanswered"), String.class);
+        left.close();
+        assertTrue(pending.isCancelled());
+        assertRejected(left.call(new Ping("closed"), String.class), RejectedExecutionException.class);
+    }
+
+    /**
+     * Call until the handlers of the network received a request that matches the given condition. Subscriptions take
+     * a moment to spread through the network.
+     */
+    private static void awaitHandlers(RpcManager caller, Predicate<Ping> received) throws Exception {
+        for (int i = 0; i < 50; i++) {
+            Ping ping = new Ping("warmup " + i);
+            try {
+                caller.call(ping, String.class).get();
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof TimeoutException)) {
+                    throw e;
+                }
+            }
+            if (received.test(ping)) {
+                return;
+            }
+        }
+        fail("Handlers not reachable");
+    }
+
+    private static void assertRejected(CompletableFuture<?> call, Class<? extends Throwable> cause)
+            throws InterruptedException {
+        try {
+            call.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), cause.isInstance(e.getCause()));
+        } catch (CancellationException e) {
+            fail();
+        }
+    }
+
+    /**
+     * Connect to the given address, retrying while the server is still binding (Server#bind does not wait).
+     */
+    private Connection connect(SocketAddress address) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return connector.connect(address).get();
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof ConnectException) || attempt >= 50) {
+                    throw e;
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private ConnectionManager connectionManager() {
+        ConnectionManager manager = ConnectionManager.create();
+        managers.add(manager);
+        return manager;
+    }
+
+    private RpcManager rpcManager(ConnectionManager connectionManager, int maxInFlight) {
+        RpcManager manager = RpcManager.create(connectionManager,
+                                               CodecManager.getDefaultManager(),
+                                               TIMEOUT_MILLIS,
+                                               TimeUnit.MILLISECONDS,
+                                               maxInFlight);
+        rpcManagers.add(manager);
+        return manager;
+    }
+
+    @RequiredArgsConstructor
+    private static class Ping {
+        private final String text;
+    }
+
+    private static class Unanswered {}
+}
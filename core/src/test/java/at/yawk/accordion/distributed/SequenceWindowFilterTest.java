@@ -0,0 +1,125 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.distributed;
+
+import at.yawk.accordion.Log;
+import org.junit.Test;
+
+import static at.yawk.accordion.distributed.SequenceWindowFilter.WINDOW_SIZE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SequenceWindowFilterTest {
+    private static final int ORIGIN = 0x1234;
+
+    private final SequenceWindowFilter filter = new SequenceWindowFilter(Log.getDefaultLogger());
+
+    private boolean register(int sequence) {
+        return filter.register(PacketIdGenerator.compose(ORIGIN, sequence), false);
+    }
+
+    @Test
+    public void testDuplicate() {
+        assertTrue(register(5));
+        assertFalse(register(5));
+        assertTrue(register(6));
+        assertFalse(register(6));
+        assertFalse(register(5));
+        assertEquals(0, filter.getTooOldCount());
+    }
+
+    @Test
+    public void testOriginsAreSeparate() {
+        assertTrue(register(5));
+        assertTrue(filter.register(PacketIdGenerator.compose(ORIGIN + 1, 5), false));
+        assertFalse(filter.register(PacketIdGenerator.compose(ORIGIN + 1, 5), false));
+    }
+
+    @Test
+    public void testOutOfOrderInsideWindow() {
+        assertTrue(register(100));
+        assertTrue(register(98));
+        assertTrue(register(99));
+        assertTrue(register(100 - WINDOW_SIZE + 1));
+        assertFalse(register(98));
+        assertFalse(register(100 - WINDOW_SIZE + 1));
+        assertEquals(0, filter.getTooOldCount());
+    }
+
+    @Test
+    public void testTooOld() {
+        assertTrue(register(WINDOW_SIZE));
+        assertFalse(register(0));
+        assertFalse(register(-1));
+        assertEquals(2, filter.getTooOldCount());
+    }
+
+    @Test
+    public void testReordered() {
+        assertTrue(register(10 * WINDOW_SIZE));
+        // older than the window, but may have been overtaken
+        assertTrue(filter.register(PacketIdGenerator.compose(ORIGIN, 0), true));
+        assertFalse(filter.register(PacketIdGenerator.compose(ORIGIN, 0), true));
+        // registered inside the window first, still a duplicate once it fell out
+        assertTrue(filter.register(PacketIdGenerator.compose(ORIGIN, 10 * WINDOW_SIZE - 1), true));
+        assertTrue(register(20 * WINDOW_SIZE));
+        assertFalse(filter.register(PacketIdGenerator.compose(ORIGIN, 10 * WINDOW_SIZE - 1), true));
+        assertEquals(0, filter.getTooOldCount());
+
+        // only the last few are remembered
+        for (int i = 1; i <= SequenceWindowFilter.REORDERED_CAPACITY; i++) {
+            assertTrue(filter.register(PacketIdGenerator.compose(ORIGIN, i), true));
+        }
+        assertTrue(filter.register(PacketIdGenerator.compose(ORIGIN, 0), true));
+    }
+
+    @Test
+    public void testJumpAheadClearsWindow() {
+        assertTrue(register(0));
+        // jump by exactly one window: 0 falls out, 1 is the oldest sequence number still inside
+        assertTrue(register(WINDOW_SIZE));
+        assertTrue(register(1));
+        assertFalse(register(1));
+        assertFalse(register(0));
+        assertEquals(1, filter.getTooOldCount());
+
+        // jump by much more than one window
+        assertTrue(register(10 * WINDOW_SIZE));
+        assertTrue(register(10 * WINDOW_SIZE - 1));
+        assertFalse(register(WINDOW_SIZE));
+        assertEquals(2, filter.getTooOldCount());
+    }
+
+    @Test
+    public void testSmallJumpClearsSkippedSlots() {
+        assertTrue(register(0));
+        // reuses the bitmap slot of 0, which must not look like a duplicate
+        assertTrue(register(WINDOW_SIZE - 1));
+        assertTrue(register(WINDOW_SIZE + 5));
+        assertTrue(register(WINDOW_SIZE));
+        assertTrue(register(WINDOW_SIZE + 1));
+    }
+
+    @Test
+    public void testWraparound() {
+        assertTrue(register(Integer.MAX_VALUE - 1));
+        assertTrue(register(Integer.MAX_VALUE));
+        assertTrue(register(Integer.MIN_VALUE));
+        assertTrue(register(Integer.MIN_VALUE + 2));
+
+        // still inside the window across the wrap
+        assertFalse(register(Integer.MAX_VALUE));
+        assertFalse(register(Integer.MIN_VALUE));
+        assertTrue(register(Integer.MIN_VALUE + 1));
+        assertFalse(register(Integer.MIN_VALUE + 1));
+
+        // and behind it
+        assertFalse(register(Integer.MAX_VALUE - WINDOW_SIZE));
+        assertEquals(1, filter.getTooOldCount());
+    }
+}
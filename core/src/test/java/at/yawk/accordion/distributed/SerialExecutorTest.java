@@ -0,0 +1,77 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.distributed;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SerialExecutorTest {
+    /**
+     * Backing executor that only runs tasks when asked to.
+     */
+    private final Queue<Runnable> backing = new ArrayDeque<>();
+    private final SerialExecutor executor = new SerialExecutor(backing::add);
+    private final List<String> log = new ArrayList<>();
+
+    @Test
+    public void testSuspend() {
+        executor.execute(() -> {
+            log.add("a");
+            executor.suspend(() -> log.add("a retry"));
+        });
+        executor.execute(() -> log.add("b"));
+        runBacking();
+
+        // suspended without holding a backing thread
+        assertEquals(Arrays.asList("a"), log);
+        assertTrue(backing.isEmpty());
+
+        executor.resume();
+        runBacking();
+        assertEquals(Arrays.asList("a", "a retry", "b"), log);
+    }
+
+    @Test
+    public void testResumeBeforeTaskReturns() {
+        executor.execute(() -> {
+            log.add("a");
+            executor.suspend(() -> log.add("a retry"));
+            executor.resume();
+        });
+        executor.execute(() -> log.add("b"));
+        runBacking();
+
+        assertEquals(Arrays.asList("a", "a retry", "b"), log);
+    }
+
+    @Test
+    public void testCancelSuspend() {
+        executor.execute(() -> {
+            log.add("a");
+            executor.suspend(() -> log.add("a retry"));
+            executor.cancelSuspend();
+        });
+        executor.execute(() -> log.add("b"));
+        runBacking();
+
+        assertEquals(Arrays.asList("a", "b"), log);
+    }
+
+    private void runBacking() {
+        Runnable task;
+        while ((task = backing.poll()) != null) {
+            task.run();
+        }
+    }
+}
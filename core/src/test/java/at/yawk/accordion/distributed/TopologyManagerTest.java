@@ -0,0 +1,186 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.distributed;
+
+import at.yawk.accordion.netty.Connection;
+import io.netty.buffer.ByteBuf;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Trees as seen by node 4 in this graph:
+ * <pre>
+ *   2
+ *  / \
+ * 1   4 - 5
+ *  \ /
+ *   3
+ * </pre>
+ */
+public class TopologyManagerTest {
+    private static final int SELF = 4;
+
+    private ConnectionManager connectionManager;
+    private TopologyManager topology;
+    private long version = 0;
+    private final Map<Integer, Connection> neighbors = new HashMap<>();
+
+    @Before
+    public void setUp() {
+        connectionManager = ConnectionManager.create();
+        topology = new TopologyManager(connectionManager, SELF);
+        for (int neighbor : new int[]{ 2, 3, 5 }) {
+            Connection connection = new StubConnection();
+            neighbors.put(neighbor, connection);
+            topology.onIdentified(connection, neighbor);
+        }
+        advert(1, 2, 3);
+        advert(2, 1, 4);
+        advert(3, 1, 4);
+        advert(5, 4);
+    }
+
+    @After
+    public void tearDown() {
+        connectionManager.shutdown();
+    }
+
+    @Test
+    public void testChildren() {
+        // 1 -> 2, 3 -> 4 -> 5
+        assertArrayEquals(new int[]{ 5 }, topology.computeChildren(1));
+        // 5 -> 4 -> 2, 3 -> 1 (via 2)
+        assertArrayEquals(new int[]{ 2, 3 }, topology.computeChildren(5));
+        assertArrayEquals(new int[]{ 2, 3, 5 }, topology.computeChildren(SELF));
+        assertNull(topology.computeChildren(42));
+    }
+
+    @Test
+    public void testParentTieBreak() {
+        // in the tree of 2, 3 is reachable through 1 and through us at the same depth: the lower ID wins
+        assertArrayEquals(new int[]{ 5 }, topology.computeChildren(2));
+        // same in the tree of 3 for node 2
+        assertArrayEquals(new int[]{ 5 }, topology.computeChildren(3));
+
+        // without the link to 1, we become the parent of 3
+        advert(1, 2);
+        assertArrayEquals(new int[]{ 3, 5 }, topology.computeChildren(2));
+    }
+
+    @Test
+    public void testOneSidedLinks() {
+        // 6 claims a link to us that we don't advertise
+        advert(6, SELF);
+        assertSame(TopologyManager.NOT_IN_TREE, topology.computeChildren(6));
+        assertArrayEquals(new int[]{ 5 }, topology.computeChildren(1));
+
+        // 5 claims a link to 7 that 7 doesn't advertise
+        advert(7);
+        advert(5, SELF, 7);
+        assertSame(TopologyManager.NOT_IN_TREE, topology.computeChildren(7));
+        assertArrayEquals(new int[]{ 5 }, topology.computeChildren(1));
+    }
+
+    @Test
+    public void testPruneUnreachable() {
+        byte[] identity = { 1, 2, 3 };
+        topology.handleAdvert(8, new TopologyManager.Advert(++version, identity, new int[]{ 9 }));
+        advert(9, 8);
+        assertFalse(topology.getNodeId(identity).isPresent());
+
+        long now = System.currentTimeMillis();
+        synchronized (topology) {
+            topology.pruneUnreachable(now + TopologyManager.PRUNE_AFTER_MILLIS);
+        }
+        assertNull(topology.computeChildren(8));
+        assertNull(topology.computeChildren(9));
+        // reachable nodes are kept
+        assertArrayEquals(new int[]{ 5 }, topology.computeChildren(1));
+
+        // reachable identities are found
+        topology.handleAdvert(1, new TopologyManager.Advert(++version, identity, new int[]{ 2, 3 }));
+        assertEquals(OptionalInt.of(1), topology.getNodeId(identity));
+    }
+
+    @Test
+    public void testFirstHop() {
+        assertEquals(OptionalInt.of(2), topology.getFirstHop(2));
+        assertEquals(OptionalInt.of(5), topology.getFirstHop(5));
+        // two shortest paths, the one through the lower neighbor ID is found first
+        assertEquals(OptionalInt.of(2), topology.getFirstHop(1));
+        assertEquals(Optional.of(neighbors.get(2)), topology.getNextHop(1));
+
+        // without the link to 2 the path goes through 3
+        advert(2, 1);
+        assertEquals(OptionalInt.of(3), topology.getFirstHop(1));
+        assertEquals(Optional.of(neighbors.get(3)), topology.getNextHop(1));
+    }
+
+    @Test
+    public void testNoHop() {
+        // unknown
+        assertFalse(topology.getFirstHop(42).isPresent());
+        assertFalse(topology.getNextHop(42).isPresent());
+        // known but not linked to us
+        advert(6, SELF);
+        assertFalse(topology.getFirstHop(6).isPresent());
+        // ourselves
+        assertFalse(topology.getFirstHop(SELF).isPresent());
+        assertFalse(topology.getNextHop(SELF).isPresent());
+    }
+
+    @Test
+    public void testDisconnect() {
+        topology.onDisconnected(neighbors.get(2));
+        assertEquals(OptionalInt.of(3), topology.getFirstHop(1));
+        // 2 is still reachable the long way round
+        assertEquals(Optional.of(neighbors.get(3)), topology.getNextHop(2));
+    }
+
+    private void advert(int node, int... neighbors) {
+        topology.handleAdvert(node, new TopologyManager.Advert(++version, new byte[0], neighbors));
+    }
+
+    private static class StubConnection implements Connection {
+        private final Map<String, Object> properties = new ConcurrentHashMap<>();
+
+        @Override
+        public void send(ByteBuf data) {
+            data.release();
+        }
+
+        @Override
+        public void disconnect() {}
+
+        @Override
+        public void setMessageHandler(Consumer<ByteBuf> listener) {}
+
+        @Override
+        public void setExceptionHandler(Consumer<Throwable> listener) {}
+
+        @Override
+        public void setDisconnectHandler(Runnable listener) {}
+
+        @Override
+        public Map<String, Object> properties() {
+            return properties;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FramerTest {
+    @Test
+    public void testInterleavedFragments() {
+        EmbeddedChannel sender = new EmbeddedChannel(new Framer());
+        EmbeddedChannel receiver = new EmbeddedChannel(new Framer());
+
+        ByteBuf large = randomBuffer(Framer.MAXIMUM_FRAME_LENGTH * 3 + 17);
+        ByteBuf small = randomBuffer(100);
+
+        // first fragment, then a complete message, then the rest
+        sender.writeOutbound(new Framer.Fragment(large.slice(0, Framer.MAXIMUM_FRAME_LENGTH).retain(), 5, false));
+        // duplicate so the receiver does not consume the expected buffer
+        sender.writeOutbound(small.duplicate().retain());
+        int offset = Framer.MAXIMUM_FRAME_LENGTH;
+        while (offset < large.readableBytes()) {
+            int length = Math.min(large.readableBytes() - offset, Framer.MAXIMUM_FRAME_LENGTH);
+            boolean last = offset + length == large.readableBytes();
+            sender.writeOutbound(new Framer.Fragment(large.slice(offset, length).retain(), 5, last));
+            offset += length;
+        }
+
+        Object encoded;
+        while ((encoded = sender.readOutbound()) != null) {
+            receiver.writeInbound(encoded);
+        }
+
+        assertEquals(small, receiver.readInbound());
+        assertEquals(large, receiver.readInbound());
+        assertNull(receiver.readInbound());
+    }
+
+    private static ByteBuf randomBuffer(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return Unpooled.wrappedBuffer(data);
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.netty;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalEventLoopGroup;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NettyConnectionTest {
+    /**
+     * Flush policy that never flushes by itself during a test, #transfer flushes instead.
+     */
+    static final FlushPolicy DELAYED_FLUSH = FlushPolicy.batched(Integer.MAX_VALUE, Integer.MAX_VALUE, 1000000000);
+
+    private final EmbeddedChannel senderChannel = throttledChannel();
+    private final EmbeddedChannel receiverChannel = new EmbeddedChannel();
+    private final NettyConnection sender = connection(senderChannel, DELAYED_FLUSH);
+    private final NettyConnection receiver = connection(receiverChannel, FlushPolicy.IMMEDIATE);
+
+    private final List<ByteBuf> received = new ArrayList<>();
+    private final List<Throwable> senderErrors = new ArrayList<>();
+    private final List<Throwable> receiverErrors = new ArrayList<>();
+
+    {
+        receiver.setMessageHandler(received::add);
+        sender.setExceptionHandler(senderErrors::add);
+        receiver.setExceptionHandler(receiverErrors::add);
+    }
+
+    @Test
+    public void testLargeMessage() {
+        ByteBuf large = randomBuffer(Framer.MAXIMUM_FRAME_LENGTH * 3 + 17);
+        ByteBuf small = randomBuffer(100);
+
+        sender.send(large.duplicate().retain());
+        // writes the first fragment, then waits for the channel to become writable again
+        senderChannel.runPendingTasks();
+        sender.send(small.duplicate().retain());
+        transfer(senderChannel, receiverChannel);
+
+        // the small message is written while the large one is still being fragmented
+        assertEquals(Arrays.asList(small, large), received);
+        assertEquals(0, sender.getStatistics().getPendingBytes());
+        assertTrue(receiverErrors.isEmpty());
+    }
+
+    @Test
+    public void testPriorityOvertakesBulk() {
+        ByteBuf bulk = randomBuffer(Framer.MAXIMUM_FRAME_LENGTH * 3 + 1);
+        ByteBuf normal = randomBuffer(Framer.MAXIMUM_FRAME_LENGTH * 3 + 2);
+        ByteBuf control = randomBuffer(10);
+
+        sender.send(bulk.duplicate().retain(), Priority.BULK);
+        senderChannel.runPendingTasks();
+        sender.send(normal.duplicate().retain(), Priority.NORMAL);
+        sender.send(control.duplicate().retain(), Priority.CONTROL);
+        transfer(senderChannel, receiverChannel);
+
+        // the bulk transfer only continues once nothing else is queued
+        assertEquals(Arrays.asList(control, normal, bulk), received);
+        assertTrue(receiverErrors.isEmpty());
+    }
+
+    @Test
+    public void testSmallMessagesWeightedWhenSaturated() {
+        for (OverflowPolicy overflowPolicy : new OverflowPolicy[]{ OverflowPolicy.BLOCK, OverflowPolicy.DROP_OLDEST }) {
+            received.clear();
+            EmbeddedChannel channel = throttledChannel();
+            NettyConnection connection = connection(channel, DELAYED_FLUSH, overflowPolicy, Integer.MAX_VALUE);
+            List<ByteBuf> bulk = new ArrayList<>();
+            List<ByteBuf> normal = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                bulk.add(randomBuffer(100 + i));
+                normal.add(randomBuffer(200 + i));
+            }
+
+            // fills the outbound buffer above the high water mark
+            ByteBuf first = randomBuffer(Framer.MAXIMUM_FRAME_LENGTH);
+            connection.send(first.duplicate().retain());
+            // sends from the event loop never block, so these all queue up behind it
+            bulk.forEach(message -> connection.send(message.duplicate().retain(), Priority.BULK));
+            normal.forEach(message -> connection.send(message.duplicate().retain(), Priority.NORMAL));
+            transfer(channel, receiverChannel);
+
+            // four normal messages per bulk message until the normal lane is empty
+            List<ByteBuf> expected = new ArrayList<>();
+            expected.add(first);
+            expected.addAll(normal.subList(0, 4));
+            expected.add(bulk.get(0));
+            expected.addAll(normal.subList(4, 8));
+            expected.addAll(bulk.subList(1, 8));
+            assertEquals(overflowPolicy.toString(), expected, received);
+            assertEquals(0, connection.getStatistics().getDroppedMessageCount());
+            assertEquals(0, connection.getStatistics().getPendingBytes());
+        }
+    }
+
+    @Test
+    public void testMessageTooLong() {
+        // wraps the same array repeatedly so we don't need to allocate the whole message
+        byte[][] parts = new byte[Framer.MAXIMUM_MESSAGE_LENGTH / Framer.MAXIMUM_FRAME_LENGTH + 1][];
+        Arrays.fill(parts, new byte[Framer.MAXIMUM_FRAME_LENGTH]);
+        ByteBuf tooLong = Unpooled.wrappedBuffer(parts);
+
+        sender.send(tooLong);
+        senderChannel.runPendingTasks();
+
+        assertEquals(0, tooLong.refCnt());
+        assertNull(senderChannel.readOutbound());
+        assertEquals(0, sender.getStatistics().getPendingBytes());
+        assertEquals(1, senderErrors.size());
+        assertTrue(senderErrors.get(0) instanceof TooLongFrameException);
+    }
+
+    @Test
+    public void testTooManyPartialMessages() {
+        EmbeddedChannel framer = new EmbeddedChannel(new Framer());
+        for (int streamId = 0; streamId <= 64; streamId++) {
+            framer.writeOutbound(new Framer.Fragment(randomBuffer(10), streamId, false));
+        }
+        transfer(framer, receiverChannel);
+
+        assertTrue(received.isEmpty());
+        assertEquals(1, receiverErrors.size());
+        assertTrue(receiverErrors.get(0) instanceof CorruptedFrameException);
+    }
+
+    @Test
+    public void testReassembledMessageTooLong() {
+        EmbeddedChannel framer = new EmbeddedChannel(new Framer());
+        byte[] fragment = new byte[Framer.MAXIMUM_FRAME_LENGTH];
+        for (int i = 0; i * Framer.MAXIMUM_FRAME_LENGTH <= Framer.MAXIMUM_MESSAGE_LENGTH; i++) {
+            framer.writeOutbound(new Framer.Fragment(Unpooled.wrappedBuffer(fragment), 1, false));
+            transfer(framer, receiverChannel);
+        }
+
+        assertTrue(received.isEmpty());
+        assertEquals(1, receiverErrors.size());
+        assertTrue(receiverErrors.get(0) instanceof TooLongFrameException);
+    }
+
+    @Test
+    public void testFlushCoalescing() throws InterruptedException {
+        // EmbeddedChannel runs pending tasks on every write, so use a real event loop
+        EventLoopGroup group = new LocalEventLoopGroup(1);
+        try {
+            LocalAddress address = new LocalAddress(NettyConnectionTest.class.getName());
+            new ServerBootstrap().group(group)
+                    .channel(LocalServerChannel.class)
+                    .childHandler(new ChannelInboundHandlerAdapter())
+                    .bind(address).sync();
+            FlushCounter counter = new FlushCounter();
+            Channel channel = new Bootstrap().group(group)
+                    .channel(LocalChannel.class)
+                    .handler(counter)
+                    .connect(address).sync().channel();
+            NettyConnection connection =
+                    new NettyConnection(channel, FlushPolicy.batched(100, Integer.MAX_VALUE), OverflowPolicy.BLOCK, 0);
+
+            channel.eventLoop().submit(() -> {
+                connection.init();
+                for (int i = 0; i < 10; i++) {
+                    connection.send(randomBuffer(10));
+                }
+            }).sync();
+            // the flush was queued behind the writes, wait for it
+            channel.eventLoop().submit(() -> {}).sync();
+
+            assertEquals(1, counter.flushes);
+            assertEquals(1, connection.getStatistics().getFlushCount());
+            assertEquals(10, connection.getStatistics().getMaxMessagesPerFlush());
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
+    @Test
+    public void testFlushOnMaxMessages() {
+        FlushCounter counter = new FlushCounter();
+        EmbeddedChannel channel = new EmbeddedChannel(counter);
+        NettyConnection connection = connection(channel, FlushPolicy.batched(4, Integer.MAX_VALUE, 1000000000));
+
+        for (int i = 0; i < 10; i++) {
+            connection.send(randomBuffer(10));
+        }
+
+        assertEquals(2, counter.flushes);
+        assertEquals(8, connection.getStatistics().getFlushedMessageCount());
+        transfer(channel);
+        assertEquals(8, received.size());
+    }
+
+    @Test
+    public void testFlushOnMaxBytes() {
+        FlushCounter counter = new FlushCounter();
+        EmbeddedChannel channel = new EmbeddedChannel(counter);
+        NettyConnection connection = connection(channel, FlushPolicy.batched(Integer.MAX_VALUE, 250, 1000000000));
+
+        for (int i = 0; i < 5; i++) {
+            connection.send(randomBuffer(100));
+        }
+
+        // flushed once the third message passed 250 bytes
+        assertEquals(1, counter.flushes);
+        assertEquals(3, connection.getStatistics().getFlushedMessageCount());
+        transfer(channel);
+        assertEquals(3, received.size());
+    }
+
+    @Test
+    public void testFlushAfterDelay() throws InterruptedException {
+        FlushCounter counter = new FlushCounter();
+        EmbeddedChannel channel = new EmbeddedChannel(counter);
+        NettyConnection connection =
+                connection(channel, FlushPolicy.batched(Integer.MAX_VALUE, Integer.MAX_VALUE, 20000));
+
+        for (int i = 0; i < 3; i++) {
+            connection.send(randomBuffer(10));
+        }
+        channel.runPendingTasks();
+        assertEquals(0, counter.flushes);
+
+        Thread.sleep(50);
+        channel.runScheduledPendingTasks();
+
+        assertEquals(1, counter.flushes);
+        assertEquals(3, connection.getStatistics().getFlushedMessageCount());
+        transfer(channel);
+        assertEquals(3, received.size());
+    }
+
+    @Test
+    public void testDropNewest() {
+        EmbeddedChannel channel = throttledChannel();
+        NettyConnection connection = connection(channel, DELAYED_FLUSH, OverflowPolicy.DROP_NEWEST, 0);
+        ByteBuf first = randomBuffer(Framer.MAXIMUM_FRAME_LENGTH);
+        ByteBuf dropped = randomBuffer(100);
+        ByteBuf last = randomBuffer(101);
+
+        // fills the outbound buffer above the high water mark
+        connection.send(first.duplicate().retain());
+        connection.send(dropped.duplicate().retain());
+        // control messages are never dropped
+        connection.send(last.duplicate().retain(), Priority.CONTROL);
+
+        assertEquals(1, connection.getStatistics().getDroppedMessageCount());
+        assertEquals(Framer.MAXIMUM_FRAME_LENGTH + 101, connection.getStatistics().getPendingBytes());
+        transfer(channel, receiverChannel);
+
+        assertEquals(Arrays.asList(first, last), received);
+        assertEquals(0, connection.getStatistics().getPendingBytes());
+    }
+
+    @Test
+    public void testDropOldest() {
+        EmbeddedChannel channel = throttledChannel();
+        NettyConnection connection = connection(channel, DELAYED_FLUSH, OverflowPolicy.DROP_OLDEST, 250);
+        ByteBuf first = randomBuffer(Framer.MAXIMUM_FRAME_LENGTH);
+        List<ByteBuf> queued = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            queued.add(randomBuffer(100 + i));
+        }
+
+        // fills the outbound buffer above the high water mark, the rest goes to the backlog
+        connection.send(first.duplicate().retain());
+        for (ByteBuf message : queued) {
+            connection.send(message.duplicate().retain());
+        }
+
+        // only the last two fit into 250 backlog bytes
+        assertEquals(3, connection.getStatistics().getDroppedMessageCount());
+        assertEquals(Framer.MAXIMUM_FRAME_LENGTH + 103 + 104, connection.getStatistics().getPendingBytes());
+        transfer(channel, receiverChannel);
+
+        assertEquals(Arrays.asList(first, queued.get(3), queued.get(4)), received);
+        assertEquals(0, connection.getStatistics().getPendingBytes());
+        assertEquals(3, connection.getStatistics().getDroppedMessageCount());
+    }
+
+    static NettyConnection connection(EmbeddedChannel channel, FlushPolicy flushPolicy) {
+        return connection(channel, flushPolicy, OverflowPolicy.BLOCK, 0);
+    }
+
+    static NettyConnection connection(EmbeddedChannel channel,
+                                      FlushPolicy flushPolicy,
+                                      OverflowPolicy overflowPolicy,
+                                      int maxBacklogBytes) {
+        NettyConnection connection = new NettyConnection(channel, flushPolicy, overflowPolicy, maxBacklogBytes);
+        connection.init();
+        return connection;
+    }
+
+    /**
+     * Channel that becomes unwritable as soon as more than one frame is waiting for a flush.
+     * <p/>
+     * EmbeddedChannel runs pending event loop tasks after every write, so a scheduled NettyConnection#pumpStreams
+     * would run in the middle of another write. Combined with DELAYED_FLUSH, the pump stops after every fragment and
+     * is only resumed by the flush in #transfer, like on a real channel with a slow peer.
+     */
+    static EmbeddedChannel throttledChannel() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.config().setWriteBufferLowWaterMark(1);
+        channel.config().setWriteBufferHighWaterMark(Framer.MAXIMUM_FRAME_LENGTH);
+        return channel;
+    }
+
+    /**
+     * Run the pending tasks of the sender and pass everything it wrote to the receiver until it is done writing.
+     */
+    static void transfer(EmbeddedChannel from, EmbeddedChannel to) {
+        boolean written = true;
+        while (written) {
+            from.runPendingTasks();
+            from.flush();
+            written = false;
+            Object frame;
+            while ((frame = from.readOutbound()) != null) {
+                to.writeInbound(frame);
+                written = true;
+            }
+        }
+    }
+
+    /**
+     * Pass the frames the given channel already flushed to the receiver without flushing it.
+     */
+    private void transfer(EmbeddedChannel from) {
+        Object frame;
+        while ((frame = from.readOutbound()) != null) {
+            receiverChannel.writeInbound(frame);
+        }
+    }
+
+    static ByteBuf randomBuffer(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return Unpooled.wrappedBuffer(data);
+    }
+
+    /**
+     * Handler that counts the flushes that reach the channel.
+     */
+    static class FlushCounter extends ChannelOutboundHandlerAdapter {
+        int flushes = 0;
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) throws Exception {
+            flushes++;
+            super.flush(ctx);
+        }
+    }
+}
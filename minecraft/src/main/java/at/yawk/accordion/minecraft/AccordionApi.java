@@ -8,6 +8,7 @@ package at.yawk.accordion.minecraft;
 
 import at.yawk.accordion.Log;
 import at.yawk.accordion.codec.packet.MessengerPacketChannel;
+import at.yawk.accordion.codec.packet.Packet;
 import at.yawk.accordion.codec.packet.PacketChannel;
 import at.yawk.accordion.compression.Compressor;
 import at.yawk.accordion.distributed.ConnectionListenerFactory;
@@ -17,6 +18,8 @@ import at.yawk.accordion.distributed.Node;
 import com.google.common.base.Preconditions;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import lombok.AccessLevel;
 import lombok.Delegate;
 import lombok.Getter;
@@ -102,6 +105,20 @@ public class AccordionApi implements PacketChannel {
      */
     private Compressor compressor;
 
+    /**
+     * Whether packet listeners should be called on the server thread in batches once per tick.
+     */
+    private boolean mainThreadDelivery = false;
+    /**
+     * Time per tick that may be spent calling packet listeners with #mainThreadDelivery.
+     */
+    private long mainThreadBudgetNanos = TickDispatcher.DEFAULT_BUDGET_NANOS;
+    /**
+     * Queue of packets waiting for main thread delivery, null if #mainThreadDelivery is disabled or we are not started
+     * yet.
+     */
+    @Getter private volatile TickDispatcher tickDispatcher;
+
     /**
      * Whether Accordion has been started.
      */
@@ -240,6 +257,38 @@ public class AccordionApi implements PacketChannel {
         return this;
     }
 
+    /**
+     * Whether packet listeners should be called on the server thread instead of Accordion's handler threads. Received
+     * packets are queued and delivered in one batch per tick (see #tick), which saves scheduling a task for every
+     * packet. Publishing a packet also queues its delivery to our own listeners. Disabled by default.
+     */
+    public AccordionApi mainThreadDelivery(boolean mainThreadDelivery) {
+        checkNotStarted();
+        this.mainThreadDelivery = mainThreadDelivery;
+        return this;
+    }
+
+    /**
+     * Maximum time per tick spent calling packet listeners with #mainThreadDelivery. Packets that don't fit are
+     * delivered in the next tick. Defaults to 5 milliseconds.
+     */
+    public AccordionApi mainThreadBudget(long budget, TimeUnit unit) {
+        checkNotStarted();
+        this.mainThreadBudgetNanos = unit.toNanos(budget);
+        return this;
+    }
+
+    /**
+     * Deliver the packets queued for the main thread. Called every tick by AccordionBukkit and AccordionBungee;
+     * instances made with #create that use #mainThreadDelivery have to call this themselves.
+     */
+    public void tick() {
+        TickDispatcher tickDispatcher = this.tickDispatcher;
+        if (tickDispatcher != null) {
+            tickDispatcher.tick();
+        }
+    }
+
     /**
      * Throws an exception if our server is started and basic configuration may not be performed anymore.
      */
@@ -281,7 +330,25 @@ public class AccordionApi implements PacketChannel {
                 .connectionListener(connectionListenerFactory)
                 .build();
         // build packet channel
-        channel = MessengerPacketChannel.create(localNode.getConnectionManager());
+        PacketChannel direct = MessengerPacketChannel.create(localNode.getConnectionManager());
+        if (mainThreadDelivery) {
+            TickDispatcher dispatcher = new TickDispatcher(logger, mainThreadBudgetNanos);
+            tickDispatcher = dispatcher;
+            channel = new PacketChannel() {
+                @Override
+                public void publish(Packet message) {
+                    direct.publish(message);
+                }
+
+                @Override
+                public <P extends Packet> void subscribe(Class<P> clazz, Consumer<P> listener) {
+                    // hand received packets to the next tick
+                    direct.subscribe(clazz, packet -> dispatcher.execute(() -> listener.accept(packet)));
+                }
+            };
+        } else {
+            channel = direct;
+        }
         // listen
         if (listen) {
             localNode.listen();
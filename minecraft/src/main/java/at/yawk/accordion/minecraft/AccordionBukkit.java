@@ -31,6 +31,8 @@ public class AccordionBukkit {
                     .tier(AccordionApi.DEFAULT_TIER_BUKKIT);
             // auto start on first tick (bukkit load complete)
             plugin.getServer().getScheduler().runTask(plugin, api::tryAutoStart);
+            // main thread delivery
+            plugin.getServer().getScheduler().runTaskTimer(plugin, api::tick, 1, 1);
             // peer discovery
             plugin.getServer().getMessenger()
                     .registerIncomingPluginChannel(plugin, AccordionApi.PEER_DISCOVERY_PLUGIN_CHANNEL,
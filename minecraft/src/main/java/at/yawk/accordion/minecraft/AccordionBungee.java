@@ -46,6 +46,8 @@ public class AccordionBungee {
 
         // TODO reliable autostart
         plugin.getProxy().getScheduler().schedule(plugin, api::tryAutoStart, 3, TimeUnit.SECONDS);
+        // bungee has no main thread, deliver from a single task at the bukkit tick rate instead
+        plugin.getProxy().getScheduler().schedule(plugin, api::tick, 50, 50, TimeUnit.MILLISECONDS);
 
         plugin.getProxy().getPluginManager().registerListener(plugin, new Listener() {
             @EventHandler
@@ -65,7 +67,11 @@ public class AccordionBungee {
                 // send our known nodes to the server
                 ByteBuf enc = api.getLocalNode().getKnownNodesEncoded();
                 byte[] array = new byte[enc.readableBytes()];
-                enc.readBytes(array);
+                try {
+                    enc.readBytes(array);
+                } finally {
+                    enc.release();
+                }
 
                 event.getPlayer().getServer().sendData(AccordionApi.PEER_DISCOVERY_PLUGIN_CHANNEL, array);
             }
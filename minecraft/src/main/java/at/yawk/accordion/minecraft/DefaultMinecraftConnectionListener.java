@@ -115,23 +115,31 @@ public class DefaultMinecraftConnectionListener implements ConnectionListener {
     }
 
     /**
-     * Called when anything is updated.
+     * Called when anything is updated. Connection attempts are asynchronous so this never blocks the scheduler.
      */
     private synchronized void update() {
         if (needsMoreNodes()) {
+            Set<Node> connecting = localNode.getConnectingNodes();
             // try to connect to a new node
             Stream<Node> possibleNodes = localNode.getKnownNodes().stream()
                     // don't connect to us
                     .filter(node -> !node.equals(localNode.getSelf()))
                             // already connected to that
                     .filter(node -> !localNode.getConnectedNodes().contains(node))
+                            // already trying to connect to that
+                    .filter(node -> !connecting.contains(node))
                             // connect to control only
                     .filter(this::isControlNode)
                             // sort by IP and failed connection time
                     .sorted(nodeSorter);
-            // find best node
-            Optional<Node> chosen = possibleNodes.findFirst();
-            chosen.ifPresent(localNode::connect);
+            if (isControlNode()) {
+                // control nodes connect to all other control nodes, do it in parallel
+                possibleNodes.forEach(localNode::connect);
+            } else if (connecting.isEmpty()) {
+                // find best node
+                Optional<Node> chosen = possibleNodes.findFirst();
+                chosen.ifPresent(localNode::connect);
+            }
         }
     }
 }
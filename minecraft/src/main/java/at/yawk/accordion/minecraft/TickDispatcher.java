@@ -0,0 +1,67 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.minecraft;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+
+/**
+ * Executor that queues tasks from any thread and runs them in one batch per server tick, see AccordionApi
+ * #mainThreadDelivery. Each batch stops once its time budget is used up; the remaining tasks run in the next tick.
+ *
+ * @author yawkat
+ */
+public class TickDispatcher implements Executor {
+    /**
+     * Default time per tick that may be spent running queued tasks.
+     */
+    public static final long DEFAULT_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private final Logger logger;
+    private final long budgetNanos;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    TickDispatcher(Logger logger, long budgetNanos) {
+        this.logger = logger;
+        this.budgetNanos = budgetNanos;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+    }
+
+    /**
+     * Run queued tasks until the queue is empty or the budget is used up. Called once per tick by the platform
+     * scheduler. At least one task is run per tick so the queue always makes progress.
+     */
+    void tick() {
+        long deadline = System.nanoTime() + budgetNanos;
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                logger.error("Error in packet listener", t);
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Number of tasks waiting for the next tick.
+     */
+    public int getQueueSize() {
+        return tasks.size();
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.accordion.minecraft;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.slf4j.helpers.NOPLogger;
+
+import static org.junit.Assert.assertEquals;
+
+public class TickDispatcherTest {
+    private final List<Integer> ran = new ArrayList<>();
+
+    private void queue(TickDispatcher dispatcher, int count) {
+        for (int i = 0; i < count; i++) {
+            int task = i;
+            dispatcher.execute(() -> ran.add(task));
+        }
+    }
+
+    @Test
+    public void testRunsAllWithinBudget() {
+        TickDispatcher dispatcher = new TickDispatcher(NOPLogger.NOP_LOGGER, TimeUnit.SECONDS.toNanos(10));
+        queue(dispatcher, 3);
+        dispatcher.execute(() -> {
+            throw new RuntimeException("failing listener");
+        });
+        queue(dispatcher, 1);
+
+        dispatcher.tick();
+
+        // errors don't stop the batch
+        assertEquals(Arrays.asList(0, 1, 2, 0), ran);
+        assertEquals(0, dispatcher.getQueueSize());
+    }
+
+    @Test
+    public void testAtLeastOneTaskPerTick() {
+        // budget is used up before the first task even starts
+        TickDispatcher dispatcher = new TickDispatcher(NOPLogger.NOP_LOGGER, 0);
+        queue(dispatcher, 3);
+
+        dispatcher.tick();
+        assertEquals(Arrays.asList(0), ran);
+        assertEquals(2, dispatcher.getQueueSize());
+
+        // the rest carries over in order
+        dispatcher.tick();
+        dispatcher.tick();
+        assertEquals(Arrays.asList(0, 1, 2), ran);
+        assertEquals(0, dispatcher.getQueueSize());
+
+        // empty ticks do nothing
+        dispatcher.tick();
+        assertEquals(3, ran.size());
+    }
+
+    @Test
+    public void testBudgetStopsBatch() {
+        TickDispatcher dispatcher = new TickDispatcher(NOPLogger.NOP_LOGGER, TimeUnit.MILLISECONDS.toNanos(1));
+        dispatcher.execute(() -> {
+            try {
+                // longer than the whole budget
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        queue(dispatcher, 2);
+
+        dispatcher.tick();
+        assertEquals(0, ran.size());
+        assertEquals(2, dispatcher.getQueueSize());
+
+        dispatcher.tick();
+        assertEquals(Arrays.asList(0, 1), ran);
+    }
+}
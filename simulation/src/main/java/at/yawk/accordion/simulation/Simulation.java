@@ -11,6 +11,9 @@ import at.yawk.accordion.compression.SnappyCompressor;
 import at.yawk.accordion.compression.VoidCompressor;
 import at.yawk.accordion.distributed.LocalNode;
 import at.yawk.accordion.distributed.Node;
+import at.yawk.accordion.netty.Connector;
+import at.yawk.accordion.netty.NettyConnector;
+import at.yawk.accordion.netty.Transport;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import java.net.InetAddress;
@@ -32,6 +35,10 @@ import org.apache.log4j.SimpleLayout;
 public class Simulation {
     private static final int BASE_PORT = 5000;
 
+    /**
+     * All simulated nodes run in this JVM, so they share one in-memory connector instead of using loopback TCP.
+     */
+    private final Connector connector = NettyConnector.builder().transport(Transport.LOCAL).build();
     private final Map<Node, LocalNode> nodes = new HashMap<>();
     private Node[][] tiers = { new Node[2], new Node[1] };
 
@@ -67,7 +74,11 @@ public class Simulation {
             int count = tiers[tier].length;
             for (int i = 0; i < count; i++) {
                 Node node = new Node(new InetSocketAddress(local, port++), tier);
-                LocalNode locNode = LocalNode.builder().compressor(SnappyCompressor.getInstance()).self(node).build();
+                LocalNode locNode = LocalNode.builder()
+                        .compressor(SnappyCompressor.getInstance())
+                        .connector(connector)
+                        .self(node)
+                        .build();
                 if (tier > 0) {
                     locNode.listen();
                 }